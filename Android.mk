@@ -23,6 +23,9 @@ LOCAL_RESOURCE_DIR := \
 
 LOCAL_USE_AAPT2 := true
 
+# Keep the contributors database uncompressed, so it can be read in place
+LOCAL_AAPT_FLAGS += -0 .db
+
 LOCAL_PRIVATE_PLATFORM_APIS := true
 
 LOCAL_CERTIFICATE := platform
@@ -35,18 +35,30 @@ public class BootReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context ctx, Intent intent) {
+        // The restore steps don't depend on each other, so they run in parallel
+        BootTaskPipeline pipeline = new BootTaskPipeline();
+
         if (!hasRestoredTunable(ctx)) {
             /* Restore the hardware tunable values */
-            ButtonSettings.restoreKeyDisabler(ctx);
-            setRestoredTunable(ctx);
+            pipeline.add("key_disabler", context -> {
+                ButtonSettings.restoreKeyDisabler(context);
+                setRestoredTunable(context);
+            });
         }
 
-        TouchscreenGestureSettings.restoreTouchscreenGestureStates(ctx);
+        pipeline.add("touchscreen_gestures",
+                TouchscreenGestureSettings::restoreTouchscreenGestureStates);
+
+        pipeline.add("fingerprint_shortcut", FingerprintShortcutUtils::restoreState);
 
-        // Extract the contributors database
-        ContributorsCloudFragment.extractContributorsCloudDatabase(ctx);
+        if (ctx.getResources().getBoolean(R.bool.config_extractContributorsOnBoot)) {
+            // Extract the contributors database (if it changed)
+            pipeline.add("contributors_database",
+                    ContributorsCloudFragment::extractContributorsCloudDatabaseIfNeeded);
+        }
 
-        FingerprintShortcutUtils.restoreState(ctx);
+        final PendingResult result = goAsync();
+        pipeline.execute(ctx.getApplicationContext(), result::finish);
     }
 
     private boolean hasRestoredTunable(Context context) {
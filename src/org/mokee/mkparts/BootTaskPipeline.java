@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent boot steps concurrently, off the main thread, and records how long
+ * every one of them took. The timings of the last boot are persisted, so they can be
+ * checked at any time with {@code dumpsys activity provider org.mokee.mkparts}.
+ */
+public class BootTaskPipeline {
+
+    private static final String TAG = "BootTaskPipeline";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final String PREFS_NAME = "boot_tasks";
+    private static final String KEY_TASKS = "tasks";
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_DURATION_PREFIX = "duration_";
+
+    public interface BootTask {
+        void run(Context context);
+    }
+
+    private final List<String> mNames = new ArrayList<>();
+    private final List<BootTask> mTasks = new ArrayList<>();
+
+    public BootTaskPipeline add(String name, BootTask task) {
+        mNames.add(name);
+        mTasks.add(task);
+        return this;
+    }
+
+    /**
+     * Run all the tasks in parallel
+     *
+     * @param onFinished called (from a background thread) once every task has finished
+     */
+    public void execute(final Context context, final Runnable onFinished) {
+        final int count = mTasks.size();
+        final long[] durations = new long[count];
+        final AtomicInteger pending = new AtomicInteger(count);
+        final long start = SystemClock.elapsedRealtime();
+
+        if (count == 0) {
+            onFinished.run();
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long taskStart = SystemClock.elapsedRealtime();
+                    try {
+                        mTasks.get(index).run(context);
+                    } catch (RuntimeException ex) {
+                        Log.e(TAG, "Boot task " + mNames.get(index) + " failed", ex);
+                    }
+                    durations[index] = SystemClock.elapsedRealtime() - taskStart;
+                    if (DEBUG) {
+                        Log.d(TAG, mNames.get(index) + " took " + durations[index] + "ms");
+                    }
+
+                    if (pending.decrementAndGet() == 0) {
+                        save(context, durations, SystemClock.elapsedRealtime() - start);
+                        onFinished.run();
+                    }
+                }
+            });
+        }
+    }
+
+    private void save(Context context, long[] durations, long total) {
+        // The last task to finish publishes the writes of the others through the counter
+        SharedPreferences.Editor editor = getPreferences(context).edit().clear();
+        editor.putString(KEY_TASKS, TextUtils.join(",", mNames));
+        editor.putLong(KEY_TIMESTAMP, System.currentTimeMillis());
+        editor.putLong(KEY_TOTAL, total);
+        for (int i = 0; i < durations.length; i++) {
+            editor.putLong(KEY_DURATION_PREFIX + mNames.get(i), durations[i]);
+        }
+        // Committed synchronously, the process may go away as soon as the boot is done
+        editor.commit();
+    }
+
+    /**
+     * Print the timings of the last boot
+     */
+    public static void dump(Context context, PrintWriter pw) {
+        SharedPreferences prefs = getPreferences(context);
+        String tasks = prefs.getString(KEY_TASKS, null);
+        pw.println("Boot tasks:");
+        if (tasks == null) {
+            pw.println("  no boot recorded");
+            return;
+        }
+
+        pw.println("  last boot: " + DateFormat.getDateTimeInstance().format(
+                new Date(prefs.getLong(KEY_TIMESTAMP, 0))));
+        for (String task : tasks.split(",")) {
+            if (!task.isEmpty()) {
+                pw.println("  " + task + ": "
+                        + prefs.getLong(KEY_DURATION_PREFIX + task, -1) + "ms");
+            }
+        }
+        pw.println("  total (wall clock): " + prefs.getLong(KEY_TOTAL, -1) + "ms");
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mokee.mkparts.applications;
+
+import android.os.AsyncTask;
+import android.text.TextUtils;
+
+import com.android.settingslib.applications.ApplicationsState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the fast scroll sections of an app list sorted by label in the background.
+ * <p>
+ * The sections come from the labels {@link ApplicationsState} already loaded for the
+ * entries, and the whole index is handed to the callback on the main thread in one go,
+ * so a rebuild never loads labels or walks the list on the main thread. Only the index
+ * of the latest entries is ever delivered.
+ */
+/* package */ class AppSectionIndexer {
+
+    public interface Callback {
+        void onIndexed(Index index);
+    }
+
+    /**
+     * The entries of a list with their sections, never modified once built
+     */
+    public static final class Index {
+        public final List<ApplicationsState.AppEntry> entries;
+        public final String[] sections;
+        // Position of the first entry of each section
+        public final int[] positions;
+        public final Map<String, ApplicationsState.AppEntry> entryMap;
+
+        private Index(List<ApplicationsState.AppEntry> entries, String[] sections,
+                int[] positions, Map<String, ApplicationsState.AppEntry> entryMap) {
+            this.entries = entries;
+            this.sections = sections;
+            this.positions = positions;
+            this.entryMap = entryMap;
+        }
+
+        public int getPositionForSection(int section) {
+            if (section < 0 || section >= sections.length) {
+                return -1;
+            }
+
+            return positions[section];
+        }
+
+        public int getSectionForPosition(int position) {
+            if (position < 0 || position >= entries.size()) {
+                return -1;
+            }
+
+            final int index = Arrays.binarySearch(positions, position);
+
+            /*
+             * Consider this example: section positions are 0, 3, 5; the supplied
+             * position is 4. The section corresponding to position 4 starts at
+             * position 3, so the expected return value is 1. Binary search will not
+             * find 4 in the array and thus will return -insertPosition-1, i.e. -3.
+             * To get from that number to the expected value of 1 we need to negate
+             * and subtract 2.
+             */
+            return index >= 0 ? index : -index - 2;
+        }
+    }
+
+    public static final Index EMPTY = new Index(new ArrayList<ApplicationsState.AppEntry>(),
+            new String[0], new int[0], new HashMap<String, ApplicationsState.AppEntry>());
+
+    private final Callback mCallback;
+    private IndexTask mTask;
+
+    public AppSectionIndexer(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Index the passed entries, replacing any indexing still running. Must be called on
+     * the main thread, and the list must not be modified afterwards.
+     */
+    public void index(List<ApplicationsState.AppEntry> entries) {
+        cancel();
+        mTask = new IndexTask(entries);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    public void cancel() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    private static Index buildIndex(List<ApplicationsState.AppEntry> entries) {
+        final ArrayList<String> sections = new ArrayList<String>();
+        final int[] offsets = new int[entries.size()];
+        final Map<String, ApplicationsState.AppEntry> entryMap =
+                new HashMap<String, ApplicationsState.AppEntry>(entries.size());
+        String lastSectionIndex = null;
+
+        for (int i = 0; i < entries.size(); i++) {
+            final ApplicationsState.AppEntry entry = entries.get(i);
+            final String label = entry.label;
+            final String sectionIndex;
+
+            if (!entry.info.enabled) {
+                sectionIndex = "--"; // XXX
+            } else if (TextUtils.isEmpty(label)) {
+                sectionIndex = "";
+            } else {
+                sectionIndex = label.substring(0, 1).toUpperCase();
+            }
+
+            if (lastSectionIndex == null ||
+                    !TextUtils.equals(sectionIndex, lastSectionIndex)) {
+                offsets[sections.size()] = i;
+                sections.add(sectionIndex);
+                lastSectionIndex = sectionIndex;
+            }
+
+            entryMap.put(entry.info.packageName, entry);
+        }
+
+        return new Index(entries, sections.toArray(new String[sections.size()]),
+                Arrays.copyOf(offsets, sections.size()), entryMap);
+    }
+
+    private class IndexTask extends AsyncTask<Void, Void, Index> {
+        private final List<ApplicationsState.AppEntry> mEntries;
+
+        IndexTask(List<ApplicationsState.AppEntry> entries) {
+            mEntries = entries;
+        }
+
+        @Override
+        protected Index doInBackground(Void... params) {
+            return buildIndex(mEntries);
+        }
+
+        @Override
+        protected void onPostExecute(Index index) {
+            if (mTask == this) {
+                mTask = null;
+                mCallback.onIndexed(index);
+            }
+        }
+    }
+}
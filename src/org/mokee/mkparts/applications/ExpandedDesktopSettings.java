@@ -21,13 +21,11 @@ import android.app.FragmentManager;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.provider.Settings;
-import android.text.TextUtils;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -52,8 +50,6 @@ import org.mokee.mkparts.SettingsPreferenceFragment;
 import org.mokee.mkparts.widget.SwitchBar;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -72,8 +68,9 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
     private ApplicationsState mApplicationsState;
     private ApplicationsState.Session mSession;
     private ActivityFilter mActivityFilter;
+    private AppSectionIndexer mIndexer;
     private Map<String, ApplicationsState.AppEntry> mEntryMap =
-            new HashMap<String, ApplicationsState.AppEntry>();
+            AppSectionIndexer.EMPTY.entryMap;
 
     private SwitchBar mSwitchBar;
     private ListView mUserListView;
@@ -102,6 +99,12 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
             WindowManagerPolicyControl.reloadFromSetting(getActivity());
         }
         mAllPackagesAdapter = new AllPackagesAdapter(getActivity());
+        mIndexer = new AppSectionIndexer(new AppSectionIndexer.Callback() {
+            @Override
+            public void onIndexed(AppSectionIndexer.Index index) {
+                handleAppIndex(index);
+            }
+        });
     }
 
     @Override
@@ -147,6 +150,7 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
         super.onDestroy();
 
         save();
+        mIndexer.cancel();
         mSession.onPause();
         mSession.onDestroy();
     }
@@ -175,8 +179,7 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
     @Override
     public void onRebuildComplete(ArrayList<ApplicationsState.AppEntry> entries) {
         if (entries != null) {
-            handleAppEntries(entries);
-            mAllPackagesAdapter.notifyDataSetChanged();
+            mIndexer.index(entries);
         }
     }
 
@@ -268,41 +271,9 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
                 .commit();
     }
 
-    private void handleAppEntries(List<ApplicationsState.AppEntry> entries) {
-        final ArrayList<String> sections = new ArrayList<String>();
-        final ArrayList<Integer> positions = new ArrayList<Integer>();
-        final PackageManager pm = getPackageManager();
-        String lastSectionIndex = null;
-        int offset = 0;
-
-        for (int i = 0; i < entries.size(); i++) {
-            final ApplicationInfo info = entries.get(i).info;
-            final String label = (String) info.loadLabel(pm);
-            final String sectionIndex;
-
-            if (!info.enabled) {
-                sectionIndex = "--"; // XXX
-            } else if (TextUtils.isEmpty(label)) {
-                sectionIndex = "";
-            } else {
-                sectionIndex = label.substring(0, 1).toUpperCase();
-            }
-
-            if (lastSectionIndex == null ||
-                    !TextUtils.equals(sectionIndex, lastSectionIndex)) {
-                sections.add(sectionIndex);
-                positions.add(offset);
-                lastSectionIndex = sectionIndex;
-            }
-
-            offset++;
-        }
-
-        mAllPackagesAdapter.setEntries(entries, sections, positions);
-        mEntryMap.clear();
-        for (ApplicationsState.AppEntry e : entries) {
-            mEntryMap.put(e.info.packageName, e);
-        }
+    private void handleAppIndex(AppSectionIndexer.Index index) {
+        mAllPackagesAdapter.setIndex(index);
+        mEntryMap = index.entryMap;
 
         if (mIsGloballyExpanded) {
             showGlobalUi();
@@ -340,9 +311,7 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
 
         private final LayoutInflater mInflater;
         private final ModeAdapter mModesAdapter;
-        private List<ApplicationsState.AppEntry> mEntries = new ArrayList<>();
-        private String[] mSections;
-        private int[] mPositions;
+        private AppSectionIndexer.Index mIndex = AppSectionIndexer.EMPTY;
 
         public AllPackagesAdapter(Context context) {
             mInflater = LayoutInflater.from(context);
@@ -352,12 +321,12 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
 
         @Override
         public int getCount() {
-            return mEntries.size();
+            return mIndex.entries.size();
         }
 
         @Override
         public Object getItem(int position) {
-            return mEntries.get(position);
+            return mIndex.entries.get(position);
         }
 
         @Override
@@ -367,7 +336,7 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
 
         @Override
         public long getItemId(int position) {
-            return mEntries.get(position).id;
+            return mIndex.entries.get(position).id;
         }
 
         @Override
@@ -382,7 +351,7 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
                 holder = (ViewHolder) convertView.getTag();
             }
 
-            ApplicationsState.AppEntry entry = mEntries.get(position);
+            ApplicationsState.AppEntry entry = mIndex.entries.get(position);
 
             if (entry == null) {
                 return holder.rootView;
@@ -398,14 +367,8 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
             return holder.rootView;
         }
 
-        private void setEntries(List<ApplicationsState.AppEntry> entries,
-                List<String> sections, List<Integer> positions) {
-            mEntries = entries;
-            mSections = sections.toArray(new String[sections.size()]);
-            mPositions = new int[positions.size()];
-            for (int i = 0; i < positions.size(); i++) {
-                mPositions[i] = positions.get(i);
-            }
+        private void setIndex(AppSectionIndexer.Index index) {
+            mIndex = index;
             notifyDataSetChanged();
         }
 
@@ -436,35 +399,17 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
 
         @Override
         public int getPositionForSection(int section) {
-            if (section < 0 || section >= mSections.length) {
-                return -1;
-            }
-
-            return mPositions[section];
+            return mIndex.getPositionForSection(section);
         }
 
         @Override
         public int getSectionForPosition(int position) {
-            if (position < 0 || position >= getCount()) {
-                return -1;
-            }
-
-            final int index = Arrays.binarySearch(mPositions, position);
-
-            /*
-             * Consider this example: section positions are 0, 3, 5; the supplied
-             * position is 4. The section corresponding to position 4 starts at
-             * position 3, so the expected return value is 1. Binary search will not
-             * find 4 in the array and thus will return -insertPosition-1, i.e. -3.
-             * To get from that number to the expected value of 1 we need to negate
-             * and subtract 2.
-             */
-            return index >= 0 ? index : -index - 2;
+            return mIndex.getSectionForPosition(position);
         }
 
         @Override
         public Object[] getSections() {
-            return mSections;
+            return mIndex.sections;
         }
     }
 
@@ -576,7 +521,7 @@ public class ExpandedDesktopSettings extends SettingsPreferenceFragment
 
         @Override
         public boolean filterApp(ApplicationsState.AppEntry entry) {
-            boolean show = !mAllPackagesAdapter.mEntries.contains(entry.info.packageName);
+            boolean show = !mAllPackagesAdapter.mIndex.entries.contains(entry.info.packageName);
             if (show) {
                 synchronized (mLauncherResolveInfoList) {
                     show = mLauncherResolveInfoList.contains(entry.info.packageName);
@@ -18,12 +18,10 @@ package org.mokee.mkparts.applications;
 import android.annotation.Nullable;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Build;
 import android.os.Bundle;
-import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -42,8 +40,6 @@ import org.mokee.mkparts.R;
 import org.mokee.mkparts.SettingsPreferenceFragment;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -54,8 +50,9 @@ public class LongScreenSettings extends SettingsPreferenceFragment
     private ApplicationsState mApplicationsState;
     private ApplicationsState.Session mSession;
     private ActivityFilter mActivityFilter;
+    private AppSectionIndexer mIndexer;
     private Map<String, ApplicationsState.AppEntry> mEntryMap =
-            new HashMap<String, ApplicationsState.AppEntry>();
+            AppSectionIndexer.EMPTY.entryMap;
 
     private ListView mUserListView;
     private LongScreen mLongScreen;
@@ -69,6 +66,12 @@ public class LongScreenSettings extends SettingsPreferenceFragment
         mSession.onResume();
         mActivityFilter = new ActivityFilter(getActivity().getPackageManager());
         mAllPackagesAdapter = new AllPackagesAdapter(getActivity());
+        mIndexer = new AppSectionIndexer(new AppSectionIndexer.Callback() {
+            @Override
+            public void onIndexed(AppSectionIndexer.Index index) {
+                handleAppIndex(index);
+            }
+        });
 
         mLongScreen = new LongScreen(getContext());
     }
@@ -103,6 +106,7 @@ public class LongScreenSettings extends SettingsPreferenceFragment
     public void onDestroy() {
         super.onDestroy();
 
+        mIndexer.cancel();
         mSession.onPause();
         mSession.onDestroy();
     }
@@ -116,8 +120,7 @@ public class LongScreenSettings extends SettingsPreferenceFragment
     @Override
     public void onRebuildComplete(ArrayList<ApplicationsState.AppEntry> entries) {
         if (entries != null) {
-            handleAppEntries(entries);
-            mAllPackagesAdapter.notifyDataSetChanged();
+            mIndexer.index(entries);
         }
     }
 
@@ -141,41 +144,9 @@ public class LongScreenSettings extends SettingsPreferenceFragment
     @Override
     public void onRunningStateChanged(boolean running) {}
 
-    private void handleAppEntries(List<ApplicationsState.AppEntry> entries) {
-        final ArrayList<String> sections = new ArrayList<String>();
-        final ArrayList<Integer> positions = new ArrayList<Integer>();
-        final PackageManager pm = getPackageManager();
-        String lastSectionIndex = null;
-        int offset = 0;
-
-        for (int i = 0; i < entries.size(); i++) {
-            final ApplicationInfo info = entries.get(i).info;
-            final String label = (String) info.loadLabel(pm);
-            final String sectionIndex;
-
-            if (!info.enabled) {
-                sectionIndex = "--"; // XXX
-            } else if (TextUtils.isEmpty(label)) {
-                sectionIndex = "";
-            } else {
-                sectionIndex = label.substring(0, 1).toUpperCase();
-            }
-
-            if (lastSectionIndex == null ||
-                    !TextUtils.equals(sectionIndex, lastSectionIndex)) {
-                sections.add(sectionIndex);
-                positions.add(offset);
-                lastSectionIndex = sectionIndex;
-            }
-
-            offset++;
-        }
-
-        mAllPackagesAdapter.setEntries(entries, sections, positions);
-        mEntryMap.clear();
-        for (ApplicationsState.AppEntry e : entries) {
-            mEntryMap.put(e.info.packageName, e);
-        }
+    private void handleAppIndex(AppSectionIndexer.Index index) {
+        mAllPackagesAdapter.setIndex(index);
+        mEntryMap = index.entryMap;
     }
 
     private void rebuild() {
@@ -186,9 +157,7 @@ public class LongScreenSettings extends SettingsPreferenceFragment
             implements SectionIndexer {
 
         private final LayoutInflater mInflater;
-        private List<ApplicationsState.AppEntry> mEntries = new ArrayList<>();
-        private String[] mSections;
-        private int[] mPositions;
+        private AppSectionIndexer.Index mIndex = AppSectionIndexer.EMPTY;
 
         public AllPackagesAdapter(Context context) {
             mInflater = LayoutInflater.from(context);
@@ -197,12 +166,12 @@ public class LongScreenSettings extends SettingsPreferenceFragment
 
         @Override
         public int getCount() {
-            return mEntries.size();
+            return mIndex.entries.size();
         }
 
         @Override
         public Object getItem(int position) {
-            return mEntries.get(position);
+            return mIndex.entries.get(position);
         }
 
         @Override
@@ -212,12 +181,12 @@ public class LongScreenSettings extends SettingsPreferenceFragment
 
         @Override
         public long getItemId(int position) {
-            return mEntries.get(position).id;
+            return mIndex.entries.get(position).id;
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            ApplicationsState.AppEntry entry = mEntries.get(position);
+            ApplicationsState.AppEntry entry = mIndex.entries.get(position);
             ViewHolder holder;
 
             if (convertView == null) {
@@ -249,48 +218,24 @@ public class LongScreenSettings extends SettingsPreferenceFragment
             return holder.rootView;
         }
 
-        private void setEntries(List<ApplicationsState.AppEntry> entries,
-                List<String> sections, List<Integer> positions) {
-            mEntries = entries;
-            mSections = sections.toArray(new String[sections.size()]);
-            mPositions = new int[positions.size()];
-            for (int i = 0; i < positions.size(); i++) {
-                mPositions[i] = positions.get(i);
-            }
+        private void setIndex(AppSectionIndexer.Index index) {
+            mIndex = index;
             notifyDataSetChanged();
         }
 
         @Override
         public int getPositionForSection(int section) {
-            if (section < 0 || section >= mSections.length) {
-                return -1;
-            }
-
-            return mPositions[section];
+            return mIndex.getPositionForSection(section);
         }
 
         @Override
         public int getSectionForPosition(int position) {
-            if (position < 0 || position >= getCount()) {
-                return -1;
-            }
-
-            final int index = Arrays.binarySearch(mPositions, position);
-
-            /*
-             * Consider this example: section positions are 0, 3, 5; the supplied
-             * position is 4. The section corresponding to position 4 starts at
-             * position 3, so the expected return value is 1. Binary search will not
-             * find 4 in the array and thus will return -insertPosition-1, i.e. -3.
-             * To get from that number to the expected value of 1 we need to negate
-             * and subtract 2.
-             */
-            return index >= 0 ? index : -index - 2;
+            return mIndex.getSectionForPosition(position);
         }
 
         @Override
         public Object[] getSections() {
-            return mSections;
+            return mIndex.sections;
         }
     }
 
@@ -339,7 +284,7 @@ public class LongScreenSettings extends SettingsPreferenceFragment
 
         @Override
         public boolean filterApp(ApplicationsState.AppEntry entry) {
-            boolean show = !mAllPackagesAdapter.mEntries.contains(entry.info.packageName);
+            boolean show = !mAllPackagesAdapter.mIndex.entries.contains(entry.info.packageName);
             if (show) {
                 synchronized (mLauncherResolveInfoList) {
                     show = mLauncherResolveInfoList.contains(entry.info.packageName) &&
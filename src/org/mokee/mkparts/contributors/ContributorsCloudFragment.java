@@ -26,18 +26,18 @@ import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Fragment;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.text.Html;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
@@ -48,6 +48,7 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.view.animation.LinearInterpolator;
@@ -65,26 +66,46 @@ import org.mokee.mkparts.search.BaseSearchIndexProvider;
 import org.mokee.mkparts.search.SearchIndexableRaw;
 import org.mokee.mkparts.search.Searchable;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 public class ContributorsCloudFragment extends Fragment implements SearchView.OnQueryTextListener,
         SearchView.OnCloseListener, MenuItem.OnActionExpandListener, Searchable {
 
     private static final String TAG = "ContributorsCloud";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
     private static final String DB_NAME = "contributors.db";
+    private static final String DB_STAMP_SUFFIX = ".stamp";
+    private static final int EXTRACT_CHUNK_SIZE = 64 * 1024;
 
     private static final String STATE_SELECTED_CONTRIBUTOR = "state_selected_contributor";
 
+    // Time to wait for more keystrokes before searching
+    private static final long SEARCH_DELAY = 150;
+
     private ContributorsCloudViewController mViewController;
+    private ContributorsCloudTileDrawable mCloudDrawable;
+    private ContributorsCloudHighlightDrawable mHighlightDrawable;
+    private final float[] mFocus = new float[2];
     private ImageView mImageView;
     private View mLoadingView;
     private View mFailedView;
@@ -108,18 +129,21 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     private SearchView mSearchView;
 
     private Handler mHandler;
+    // Runs the search queries, one at a time so they can build on the previous results
+    private HandlerThread mSearchThread;
+    private Handler mSearchHandler;
 
-    private static final String KEY_PREFIX = "contributor_";
+    private String mPendingQuery;
+    private String mLastQuery;
+    private List<ContributorsDataHolder> mLastResults;
+    private Boolean mHasSearchIndex;
 
-    private static class ViewInfo {
-        Bitmap mBitmap;
-        float mFocusX;
-        float mFocusY;
-    }
+    private static final String KEY_PREFIX = "contributor_";
 
     private static class ContributorsDataHolder {
         int mId;
         String mLabel;
+        String mFilter;
     }
 
     private static class ContributorsViewHolder {
@@ -157,7 +181,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     }
 
     private class ContributorCloudLoaderTask extends AsyncTask<Void, Void, Boolean> {
-        private ViewInfo mViewInfo;
+        private ContributorsCloudTileDrawable mDrawable;
         private final boolean mNotify;
         private final boolean mNavigate;
 
@@ -174,10 +198,8 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         @Override
         protected Boolean doInBackground(Void... params) {
             try {
-                loadContributorsInfo(getActivity());
-                loadUserInfo(getActivity());
-                mViewInfo = generateViewInfo(getActivity(), mSelectedContributor);
-                if (mViewInfo != null && mViewInfo.mBitmap != null) {
+                mDrawable = generateCloudDrawable(getActivity());
+                if (mDrawable != null) {
                     return Boolean.TRUE;
                 }
 
@@ -190,20 +212,19 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         @Override
         protected void onPostExecute(Boolean result) {
             if (result == true) {
-                mImageView.setImageBitmap(mViewInfo.mBitmap);
-                mViewController.update();
+                setCloudDrawable(mDrawable);
+                boolean hasFocus = selectContributor(mSelectedContributor, mFocus);
                 if (mNotify) {
-                    if (mNavigate) {
-                        onLoadCloudDataSuccess(mViewInfo.mFocusX, mViewInfo.mFocusY);
+                    if (mNavigate && hasFocus) {
+                        onLoadCloudDataSuccess(mFocus[0], mFocus[1]);
                     } else {
                         onLoadCloudDataSuccess(-1, -1);
                     }
                 }
             } else {
-                mImageView.setImageBitmap(null);
-                mViewController.update();
-                if (mViewInfo != null && mViewInfo.mBitmap != null) {
-                    mViewInfo.mBitmap.recycle();
+                setCloudDrawable(null);
+                if (mDrawable != null) {
+                    mDrawable.release();
                 }
                 if (mNotify) {
                     onLoadCloudDataFailed();
@@ -225,6 +246,10 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
 
+        mSearchThread = new HandlerThread(TAG + "Search");
+        mSearchThread.start();
+        mSearchHandler = new Handler(mSearchThread.getLooper());
+
         if (savedInstanceState != null) {
             mSelectedContributor = savedInstanceState.getInt(STATE_SELECTED_CONTRIBUTOR, -1);
         }
@@ -233,13 +258,28 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mDatabase != null && mDatabase.isOpen()) {
-            try {
-                mDatabase.close();
-            } catch (SQLException ex) {
-                // Ignore
-            }
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mSearchRunnable);
+        }
+        if (mCloudDrawable != null) {
+            mCloudDrawable.release();
+            mCloudDrawable = null;
         }
+        // Close the database after the search in progress, if any
+        mSearchHandler.removeCallbacksAndMessages(null);
+        mSearchHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mDatabase != null && mDatabase.isOpen()) {
+                    try {
+                        mDatabase.close();
+                    } catch (SQLException ex) {
+                        // Ignore
+                    }
+                }
+            }
+        });
+        mSearchThread.quitSafely();
     }
 
     @Override
@@ -282,22 +322,41 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        final Context context = getActivity().getApplicationContext();
         switch (item.getItemId()) {
             case R.id.contributors_search:
                 mSearchView.setQuery("", false);
                 mSelectedContributor = -1;
-
-                // Load the data from the database and fill the image
-                ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(false, false);
-                task.execute();
+                selectContributor(mSelectedContributor, mFocus);
                 break;
 
             case R.id.contributor_info:
-                showUserInfo(getActivity());
+                final int contributor = mSelectedContributor;
+                queryDatabase(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadUserInfo(context, contributor);
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        showUserInfo(getActivity());
+                    }
+                });
                 break;
 
             case R.id.contributions_info:
-                showContributorsInfo(getActivity());
+                queryDatabase(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadContributorsInfo(context);
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        showContributorsInfo(getActivity());
+                    }
+                });
                 break;
 
             default:
@@ -306,6 +365,28 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         return super.onContextItemSelected(item);
     }
 
+    /**
+     * Run a database query on the search thread, as the database may be busy loading the
+     * cloud (or not even extracted yet), then show its result if we are still attached
+     */
+    private void queryDatabase(final Runnable query, final Runnable show) {
+        final Activity activity = getActivity();
+        mSearchHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                query.run();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (getActivity() == activity && activity != null) {
+                            show.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle state) {
         View v = inflater.inflate(R.layout.contributors_view, container, false);
@@ -316,6 +397,23 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         mViewController = new ContributorsCloudViewController(mImageView);
         mViewController.setMaximumScale(20f);
         mViewController.setMediumScale(7f);
+        mViewController.setOnMatrixChangeListener(
+                new ContributorsCloudViewController.OnMatrixChangedListener() {
+            @Override
+            public void onMatrixChanged(RectF rect) {
+                if (mCloudDrawable != null) {
+                    mCloudDrawable.setViewport(rect,
+                            mImageView.getWidth(), mImageView.getHeight());
+                }
+            }
+        });
+        mViewController.setOnPhotoTapListener(
+                new ContributorsCloudViewController.OnPhotoTapListener() {
+            @Override
+            public void onPhotoTap(View view, float x, float y) {
+                onCloudTapped(x, y);
+            }
+        });
 
         mSearchResults = (ListView) v.findViewById(R.id.contributors_cloud_search_results);
         mSearchAdapter = new ContributorsAdapter(getActivity());
@@ -385,16 +483,46 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
 
     @Override
     public boolean onQueryTextChange(String newText) {
-        List<ContributorsDataHolder> contributors = new ArrayList<>();
-        if (!TextUtils.isEmpty(newText) || newText.length() >= 3) {
-            contributors.addAll(performFilter(getActivity(), newText));
-        }
-        mSearchAdapter.clear();
-        mSearchAdapter.addAll(contributors);
-        mSearchAdapter.notifyDataSetChanged();
+        // Wait for the user to stop typing
+        mPendingQuery = newText;
+        mHandler.removeCallbacks(mSearchRunnable);
+        mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY);
         return true;
     }
 
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (getActivity() == null) {
+                return;
+            }
+            final Context context = getActivity().getApplicationContext();
+            final String query = mPendingQuery;
+            mSearchHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final List<ContributorsDataHolder> contributors = new ArrayList<>();
+                    if (!TextUtils.isEmpty(query) || query.length() >= 3) {
+                        contributors.addAll(performFilter(context, query));
+                    }
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Drop the results if the user kept typing meanwhile
+                            if (getActivity() == null
+                                    || !TextUtils.equals(query, mPendingQuery)) {
+                                return;
+                            }
+                            mSearchAdapter.clear();
+                            mSearchAdapter.addAll(contributors);
+                            mSearchAdapter.notifyDataSetChanged();
+                        }
+                    });
+                }
+            });
+        }
+    };
+
     private void showMenuItems(boolean visible) {
         if (mSearchMenuItem != null) {
             mSearchMenuItem.setVisible(visible);
@@ -476,131 +604,123 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
     }
 
-    private synchronized ViewInfo generateViewInfo(Context context, int selectedId) {
-        Bitmap bitmap = null;
-        float focusX = -1, focusY = -1;
+    private synchronized ContributorsCloudTileDrawable generateCloudDrawable(Context context) {
         final Resources res = context.getResources();
 
-        // Open the database
-        SQLiteDatabase db = getDatabase(context, true);
-        if (db == null) {
-            // We don't have a valid database reference
-            return null;
+        // Load the layout of the cloud (use large cloud when available). The database is
+        // only opened when the layout has to be built again.
+        long start = SystemClock.elapsedRealtime();
+        int bsize = hasLargeHeap() ? 2048 : 1024;
+        ContributorsCloudModel model = null;
+        long date = getExtractedDatabaseDate(context);
+        if (date != -1) {
+            model = ContributorsCloudModel.loadCached(context, bsize, date);
         }
-
-        // Extract original image size
-        Cursor c = db.rawQuery("select value from info where key = ?;", new String[]{"orig_size"});
-        if (c == null || !c.moveToFirst()) {
-            // We don't have a valid cursor reference
-            return null;
+        if (model == null) {
+            // Open the database
+            SQLiteDatabase db = getDatabase(context, true);
+            if (db == null) {
+                // We don't have a valid database reference
+                return null;
+            }
+            model = ContributorsCloudModel.load(context, db, bsize);
+            if (model == null) {
+                return null;
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Loaded cloud layout of " + model.getCount() + " contributors in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
         }
-        int osize = c.getInt(0);
-        c.close();
 
-        // Query the metadata table to extract all the commits information
-        c = db.rawQuery("select id, name, x, y, r, fs from metadata;", null);
-        if (c == null) {
-            // We don't have a valid cursor reference
-            return null;
+        TypedValue colorAccent = new TypedValue();
+        context.getTheme().resolveAttribute(com.android.internal.R.attr.colorAccent,
+                colorAccent, true);
+        int colorForeground = res.getColor(colorAccent.resourceId);
+
+        // Only the lowest levels of detail are rendered (or read from the cache) here,
+        // the rest of the tiles are rendered on demand while the cloud is navigated
+        ContributorsCloudTileDrawable drawable =
+                new ContributorsCloudTileDrawable(model, colorForeground);
+        drawable.prepare(new File(context.getCacheDir(),
+                "contributors_cloud_" + bsize + ".tiles"));
+        if (DEBUG) {
+            Log.d(TAG, "Cloud ready in " + (SystemClock.elapsedRealtime() - start) + "ms");
         }
-        try {
-            TypedValue colorAccent = new TypedValue();
-            context.getTheme().resolveAttribute(com.android.internal.R.attr.colorAccent,
-                    colorAccent, true);
-            int colorForeground = res.getColor(colorAccent.resourceId);
-            int colorSelected = res.getColor(R.color.contributors_cloud_selected_color);
-            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
-
-            // Create a bitmap large enough to hold the cloud (use large bitmap when available)
-            int bsize = hasLargeHeap() ? 2048 : 1024;
-            bitmap = Bitmap.createBitmap(bsize, bsize, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-
-            // Draw every contributor name
-            while (c.moveToNext()) {
-                int id = c.getInt(c.getColumnIndexOrThrow("id"));
-
-                String name = c.getString(c.getColumnIndexOrThrow("name"));
-                float x = translate(c.getFloat(c.getColumnIndexOrThrow("x")), osize, bsize);
-                float y = translate(c.getFloat(c.getColumnIndexOrThrow("y")), osize, bsize);
-                int r = c.getInt(c.getColumnIndexOrThrow("r"));
-                float fs = translate(c.getFloat(c.getColumnIndexOrThrow("fs")), osize, bsize);
-                if (id < 0) {
-                    y -= translate(fs, osize, bsize);
-                }
+        return drawable;
+    }
 
-                // Choose the correct paint
-                paint.setColor(selectedId == id ? colorSelected : colorForeground);
-                paint.setTextSize(fs);
+    private void setCloudDrawable(ContributorsCloudTileDrawable drawable) {
+        ContributorsCloudTileDrawable oldDrawable = mCloudDrawable;
+        mCloudDrawable = drawable;
+        mImageView.setImageDrawable(drawable);
+        mViewController.update();
+        if (oldDrawable != null && oldDrawable != drawable) {
+            oldDrawable.release();
+        }
 
-                // Check text rotation
-                float w = 0f, h = 0f;
-                if (selectedId == id || r != 0) {
-                    Rect bounds = new Rect();
-                    paint.getTextBounds(name, 0, name.length(), bounds);
-                    h = bounds.height();
-                }
-                if (selectedId == id || r == -1) {
-                    w = paint.measureText(name);
-                }
-                if (r == 0) {
-                    // Horizontal
-                    canvas.drawText(name, x, y, paint);
-                } else {
-                    if (r == -1) {
-                        // Vertical (-90 rotation)
-                        canvas.save();
-                        canvas.translate(h, w - h);
-                        canvas.rotate(-90, x, y);
-                        canvas.drawText(name, x, y, paint);
-                        canvas.restore();
-                    } else {
-                        // Vertical (+90 rotation)
-                        canvas.save();
-                        canvas.translate(h/2, -h);
-                        canvas.rotate(90, x, y);
-                        canvas.drawText(name, x, y, paint);
-                        canvas.restore();
-                    }
-                }
+        // The selection is drawn in its own layer, on top of the cloud
+        if (drawable == null) {
+            mHighlightDrawable = null;
+        } else if (mHighlightDrawable == null
+                || mHighlightDrawable.getModel() != drawable.getModel()) {
+            mHighlightDrawable = new ContributorsCloudHighlightDrawable(drawable.getModel(),
+                    getResources().getColor(R.color.contributors_cloud_selected_color));
+        }
+        mViewController.setHighlightDrawable(mHighlightDrawable);
+    }
 
-                // Calculate focus
-                if (selectedId == id) {
-                    int iw = mImageView.getWidth();
-                    int ih = mImageView.getHeight();
-                    int cx = iw / 2;
-                    int cy = ih / 2;
-                    int cbx = bsize / 2;
-                    int cby = bsize / 2;
-                    float cw = 0f;
-                    float ch = 0f;
-                    if (r == 0) {
-                        cw = translate(w, bsize, Math.min(iw, ih)) / 2;
-                        ch = translate(h, bsize, Math.min(iw, ih)) / 2;
-                    } else {
-                        cw = translate(h, bsize, Math.min(iw, ih)) / 2;
-                        ch = translate(w, bsize, Math.min(iw, ih)) / 2;
-                    }
+    /**
+     * Highlight the contributor in the cloud
+     *
+     * @param selectedId the contributor to highlight or -1 for none
+     * @param focus where the focus point of the contributor is returned
+     * @return whether the contributor is in the cloud and a focus point was returned
+     */
+    private boolean selectContributor(int selectedId, float[] focus) {
+        if (mHighlightDrawable == null) {
+            return false;
+        }
 
-                    focusX = cx + translate(x - cbx, bsize, iw) + cw;
-                    focusY = cy + translate(y - cby, bsize, ih) + ch;
-                }
-            }
+        final ContributorsCloudModel model = mHighlightDrawable.getModel();
+        final int selectedIndex = model.indexOf(selectedId);
+        mHighlightDrawable.setSelectedIndex(selectedIndex);
+        if (selectedIndex == -1) {
+            return false;
+        }
 
-        } finally {
-            c.close();
+        // Calculate focus
+        int bsize = model.getSize();
+        float x = model.getX(selectedIndex);
+        float y = model.getY(selectedIndex);
+        float w = model.getTextWidth(selectedIndex);
+        float h = model.getTextHeight(selectedIndex);
+        int iw = mImageView.getWidth();
+        int ih = mImageView.getHeight();
+        int cx = iw / 2;
+        int cy = ih / 2;
+        int cbx = bsize / 2;
+        int cby = bsize / 2;
+        float cw = 0f;
+        float ch = 0f;
+        if (model.getRotation(selectedIndex) == 0) {
+            cw = translate(w, bsize, Math.min(iw, ih)) / 2;
+            ch = translate(h, bsize, Math.min(iw, ih)) / 2;
+        } else {
+            cw = translate(h, bsize, Math.min(iw, ih)) / 2;
+            ch = translate(w, bsize, Math.min(iw, ih)) / 2;
         }
 
-        // Return the bitmap
-        ViewInfo viewInfo = new ViewInfo();
-        viewInfo.mBitmap = bitmap;
-        viewInfo.mFocusX = focusX;
-        viewInfo.mFocusY = focusY;
-        return viewInfo;
+        focus[0] = cx + translate(x - cbx, bsize, iw) + cw;
+        focus[1] = cy + translate(y - cby, bsize, ih) + ch;
+        return true;
     }
 
     private synchronized SQLiteDatabase getDatabase(Context context, boolean retryCopyIfOpenFails) {
         if (mDatabase == null) {
+            // The database is only materialized the first time it's used
+            extractContributorsCloudDatabaseIfNeeded(context);
+
             File dbPath = context.getDatabasePath(DB_NAME);
             try {
                 mDatabase = SQLiteDatabase.openDatabase(dbPath.getAbsolutePath(),
@@ -673,7 +793,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         c.close();
     }
 
-    private void loadUserInfo(Context context) {
+    private void loadUserInfo(Context context, int contributor) {
         // Open the database
         SQLiteDatabase db = getDatabase(context, true);
         if (db == null) {
@@ -682,7 +802,7 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
         }
 
         // Total contributors
-        String[] args = new String[]{String.valueOf(mSelectedContributor)};
+        String[] args = new String[]{String.valueOf(contributor)};
         Cursor c = db.rawQuery("select m1.name, m1.username, m1.commits " +
                                "from metadata as m1 where m1.id = ?;", args);
         if (c == null || !c.moveToFirst()) {
@@ -731,19 +851,47 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     }
 
     private List<ContributorsDataHolder> performFilter(Context context, String query) {
+        final String filter = query.replaceAll("\\|", "").toLowerCase(Locale.ROOT);
+        final boolean hasWildcards = filter.indexOf('%') != -1 || filter.indexOf('_') != -1;
+
+        // A query that extends the previous one can only match a subset of its
+        // results, so just narrow them
+        if (mLastQuery != null && !hasWildcards && filter.contains(mLastQuery)) {
+            List<ContributorsDataHolder> results = new ArrayList<>();
+            for (ContributorsDataHolder contributor : mLastResults) {
+                if (contributor.mFilter.contains(filter)) {
+                    results.add(contributor);
+                }
+            }
+            mLastQuery = filter;
+            mLastResults = results;
+            return new ArrayList<>(results);
+        }
+
         // Open the database
         SQLiteDatabase db = getDatabase(context, false);
         if (db == null) {
             // We don't have a valid database reference
             return new ArrayList<>();
         }
+        if (mHasSearchIndex == null) {
+            mHasSearchIndex = ContributorsSearchIndex.exists(db);
+        }
+
+        // Use the trigram index to only check the possible matches
+        List<String> args = new ArrayList<>();
+        String candidates = "";
+        if (mHasSearchIndex && !hasWildcards
+                && filter.length() >= ContributorsSearchIndex.TRIGRAM_LENGTH) {
+            candidates = "id in (" + ContributorsSearchIndex.getCandidatesSelection(filter, args)
+                    + ") and ";
+        }
+        args.add(filter);
 
-        // Total contributors
-        String[] args = new String[]{String.valueOf(query.replaceAll("\\|", ""))};
         Cursor c = db.rawQuery(
-                "select id, name || case when username is null then '' else ' <'||username||'>' end contributor " +
-                "from metadata where lower(filter) like lower('%' || ? || '%') and id > 0 " +
-                "order by commits desc", args);
+                "select id, name || case when username is null then '' else ' <'||username||'>' end contributor, filter " +
+                "from metadata where " + candidates + "lower(filter) like lower('%' || ? || '%') and id > 0 " +
+                "order by commits desc", args.toArray(new String[args.size()]));
         if (c == null) {
             // We don't have a valid cursor reference
             return new ArrayList<>();
@@ -753,10 +901,15 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
             ContributorsDataHolder result = new ContributorsDataHolder();
             result.mId = c.getInt(0);
             result.mLabel = c.getString(1);
+            result.mFilter = c.getString(2) != null
+                    ? c.getString(2).toLowerCase(Locale.ROOT) : "";
             results.add(result);
         }
         c.close();
-        return results;
+
+        mLastQuery = hasWildcards ? null : filter;
+        mLastResults = results;
+        return new ArrayList<>(results);
     }
 
     private void onContributorSelected(ContributorsDataHolder contributor) {
@@ -765,13 +918,49 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
 
     private void onContributorSelected(int contributorId) {
         mSelectedContributor = contributorId;
-        ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(true, true);
-        task.execute();
+        if (mHighlightDrawable != null) {
+            // The cloud is already loaded, just move the highlight
+            if (selectContributor(contributorId, mFocus)) {
+                onLoadCloudDataSuccess(mFocus[0], mFocus[1]);
+            } else {
+                onLoadCloudDataSuccess(-1, -1);
+            }
+        } else {
+            ContributorCloudLoaderTask task = new ContributorCloudLoaderTask(true, true);
+            task.execute();
+        }
         if (mSearchMenuItem != null) {
             mSearchMenuItem.collapseActionView();
         }
     }
 
+    private void onCloudTapped(float x, float y) {
+        if (mHighlightDrawable == null) {
+            return;
+        }
+
+        // Accept taps within the touch slop of a name, whatever the zoom is
+        final ContributorsCloudModel model = mHighlightDrawable.getModel();
+        final RectF displayRect = mViewController.getDisplayRect();
+        if (displayRect == null || displayRect.width() <= 0) {
+            return;
+        }
+        final float scale = displayRect.width() / model.getSize();
+        final float slop = ViewConfiguration.get(getActivity()).getScaledTouchSlop() / scale;
+
+        final int index = model.findAt(x * model.getSize(), y * model.getSize(), slop);
+        if (index == -1 || model.getId(index) <= 0) {
+            // Nothing or just one of the decorative words
+            return;
+        }
+
+        mSelectedContributor = model.getId(index);
+        selectContributor(mSelectedContributor, mFocus);
+        if (mContributorInfoMenuItem != null && !mSearchMenuItem.isActionViewExpanded()) {
+            mContributorInfoMenuItem.setVisible(true);
+        }
+    }
+
     private boolean hasLargeHeap() {
         ActivityManager am = (ActivityManager) getActivity().getSystemService(Context.ACTIVITY_SERVICE);
         return am.getMemoryClass() >= 96;
@@ -782,31 +971,192 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
     }
 
 
+    /**
+     * Extract the contributors database, unless the extracted copy already comes from the
+     * installed apk. In the common case this just compares the apk with the stamp stored
+     * next to the database.
+     */
+    public static void extractContributorsCloudDatabaseIfNeeded(Context context) {
+        synchronized (ContributorsCloudFragment.class) {
+            File databasePath = context.getDatabasePath(DB_NAME);
+            File stampPath = new File(databasePath.getPath() + DB_STAMP_SUFFIX);
+            String apkStamp = getApkStamp(context);
+            String[] stamp = readStamp(stampPath);
+            if (stamp != null && databasePath.exists()) {
+                if (stamp[0].equals(apkStamp)) {
+                    // Extracted from this apk
+                    return;
+                }
+
+                // The apk was updated, but the database may be the same
+                try {
+                    if (stamp[1].equals(getAssetChecksum(context))) {
+                        writeStamp(stampPath, apkStamp, stamp[1], stamp[2]);
+                        return;
+                    }
+                } catch (IOException ex) {
+                    Log.w(TAG, "Failed to checksum contributors database", ex);
+                }
+            }
+            extractContributorsCloudDatabase(context);
+        }
+    }
+
     public static void extractContributorsCloudDatabase(Context context) {
-        final int BUFFER = 1024;
-        InputStream is = null;
-        OutputStream os = null;
-        File databasePath = context.getDatabasePath(DB_NAME);
-        try {
+        synchronized (ContributorsCloudFragment.class) {
+            File databasePath = context.getDatabasePath(DB_NAME);
+            File stampPath = new File(databasePath.getPath() + DB_STAMP_SUFFIX);
+            File tempPath = new File(databasePath.getPath() + ".tmp");
+            String checksum;
+            long date = -1;
             databasePath.getParentFile().mkdir();
-            is = context.getResources().getAssets().open(DB_NAME, AssetManager.ACCESS_BUFFER);
-            os = new FileOutputStream(databasePath);
-            int read = -1;
-            byte[] data = new byte[BUFFER];
-            while ((read = is.read(data, 0, BUFFER)) != -1) {
-                os.write(data, 0, read);
+            stampPath.delete();
+
+            // Copy to a temporary file, so the database is never seen half written
+            try (FileOutputStream os = new FileOutputStream(tempPath)) {
+                checksum = copyAsset(context, os.getChannel());
+            } catch (IOException ex) {
+                Log.e(TAG, "Failed to extract contributors database", ex);
+                tempPath.delete();
+                return;
             }
-        } catch (IOException ex) {
-            Log.e(TAG, "Failed to extract contributors database");
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException ex) {
-                    // Ignore
+
+            // Index the contributors for the search
+            SQLiteDatabase db = null;
+            try {
+                db = SQLiteDatabase.openDatabase(tempPath.getAbsolutePath(),
+                        null, SQLiteDatabase.OPEN_READWRITE);
+                ContributorsSearchIndex.build(db);
+                date = ContributorsCloudModel.readDate(db);
+            } catch (SQLException ex) {
+                Log.e(TAG, "Cannot index cloud database: " + DB_NAME, ex);
+            } finally {
+                if (db != null && db.isOpen()) {
+                    db.close();
+                }
+            }
+            new File(tempPath.getPath() + "-journal").delete();
+
+            if (!tempPath.renameTo(databasePath)) {
+                Log.e(TAG, "Failed to extract contributors database");
+                tempPath.delete();
+                return;
+            }
+            writeStamp(stampPath, getApkStamp(context), checksum, String.valueOf(date));
+        }
+    }
+
+    /**
+     * @return the date of the extracted database, or -1 if it isn't known or the database
+     *         needs to be extracted again. Unlike opening the database, this doesn't need
+     *         more than reading its stamp.
+     */
+    private static long getExtractedDatabaseDate(Context context) {
+        synchronized (ContributorsCloudFragment.class) {
+            File databasePath = context.getDatabasePath(DB_NAME);
+            String[] stamp = readStamp(new File(databasePath.getPath() + DB_STAMP_SUFFIX));
+            if (stamp == null || !databasePath.exists()
+                    || !stamp[0].equals(getApkStamp(context))) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(stamp[2]);
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+    }
+
+    private static String getApkStamp(Context context) {
+        // The apk path and its modification time change with every install or update
+        // of the apk, and are just a stat away
+        String apk = context.getApplicationInfo().sourceDir;
+        return apk + ":" + new File(apk).lastModified();
+    }
+
+    private static String getAssetChecksum(Context context) throws IOException {
+        return copyAsset(context, null);
+    }
+
+    /**
+     * Copy the database asset to {@code target} (if not null)
+     *
+     * @return the checksum of the asset
+     */
+    private static String copyAsset(Context context, FileChannel target) throws IOException {
+        final AssetManager assets = context.getResources().getAssets();
+        final CRC32 crc = new CRC32();
+        final byte[] data = new byte[EXTRACT_CHUNK_SIZE];
+
+        AssetFileDescriptor afd = null;
+        try {
+            afd = assets.openFd(DB_NAME);
+        } catch (FileNotFoundException ex) {
+            // The asset is compressed, it has to be streamed
+        }
+
+        if (afd != null) {
+            // Stored uncompressed: map it straight from the apk
+            try (FileInputStream is = afd.createInputStream()) {
+                MappedByteBuffer buffer = is.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        afd.getStartOffset(), afd.getLength());
+                ByteBuffer view = buffer.duplicate();
+                while (view.hasRemaining()) {
+                    int n = Math.min(view.remaining(), data.length);
+                    view.get(data, 0, n);
+                    crc.update(data, 0, n);
+                }
+                while (target != null && buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+        } else {
+            try (InputStream is = new CheckedInputStream(
+                    assets.open(DB_NAME, AssetManager.ACCESS_STREAMING), crc)) {
+                if (target != null) {
+                    ReadableByteChannel source = Channels.newChannel(is);
+                    long position = 0;
+                    long transferred;
+                    while ((transferred = target.transferFrom(
+                            source, position, EXTRACT_CHUNK_SIZE)) > 0) {
+                        position += transferred;
+                    }
+                } else {
+                    while (is.read(data) != -1) {
+                        // Just checksum
+                    }
                 }
             }
         }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String[] readStamp(File stampPath) {
+        if (!stampPath.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(stampPath))) {
+            String apkStamp = reader.readLine();
+            String checksum = reader.readLine();
+            String date = reader.readLine();
+            if (apkStamp == null || checksum == null) {
+                return null;
+            }
+            // Stamps written before the date was stored don't have it
+            return new String[] { apkStamp, checksum, date != null ? date : "-1" };
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static void writeStamp(File stampPath, String apkStamp, String checksum,
+            String date) {
+        try (FileWriter writer = new FileWriter(stampPath)) {
+            writer.write(apkStamp + "\n" + checksum + "\n" + date + "\n");
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write contributors database stamp", ex);
+            stampPath.delete();
+        }
     }
 
     public static final Searchable.SearchIndexProvider SEARCH_INDEX_DATA_PROVIDER =
@@ -816,7 +1166,12 @@ public class ContributorsCloudFragment extends Fragment implements SearchView.On
                 public List<SearchIndexableRaw> getRawDataToIndex(Context context) {
 
                     // Index the top 100 contributors, for fun :)
+                    // The database is only extracted when the cloud is opened, don't do it
+                    // here just for the search index
                     File dbPath = context.getDatabasePath(DB_NAME);
+                    if (!dbPath.exists()) {
+                        return null;
+                    }
                     SQLiteDatabase db = null;
                     try {
                         db = SQLiteDatabase.openDatabase(dbPath.getAbsolutePath(),
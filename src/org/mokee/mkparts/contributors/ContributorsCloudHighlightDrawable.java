@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.contributors;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Overlay layer that draws the selected contributor on top of the cloud. It is composited
+ * by {@link ContributorsCloudViewController} over the image, so changing the selection
+ * only redraws one name instead of the whole cloud.
+ */
+public class ContributorsCloudHighlightDrawable extends Drawable {
+
+    private final ContributorsCloudModel mModel;
+    private final Paint mPaint;
+    private final Matrix mDrawMatrix = new Matrix();
+    private final char[] mChars;
+
+    private int mSelectedIndex = -1;
+
+    public ContributorsCloudHighlightDrawable(ContributorsCloudModel model, int colorSelected) {
+        mModel = model;
+        mChars = model.newNameBuffer();
+        mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
+        mPaint.setColor(colorSelected);
+    }
+
+    public ContributorsCloudModel getModel() {
+        return mModel;
+    }
+
+    public int getSelectedIndex() {
+        return mSelectedIndex;
+    }
+
+    /**
+     * Highlight the contributor at the passed position of the model (-1 for none)
+     */
+    public void setSelectedIndex(int index) {
+        if (mSelectedIndex != index) {
+            mSelectedIndex = index;
+            invalidateSelf();
+        }
+    }
+
+    /**
+     * Set the matrix that maps the cloud to the view
+     *
+     * @param matrix the draw matrix of the image
+     * @param dx the left padding of the view
+     * @param dy the top padding of the view
+     */
+    public void setDrawMatrix(Matrix matrix, float dx, float dy) {
+        mDrawMatrix.set(matrix);
+        mDrawMatrix.postTranslate(dx, dy);
+        if (mSelectedIndex != -1) {
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (mSelectedIndex == -1) {
+            return;
+        }
+        canvas.save();
+        canvas.concat(mDrawMatrix);
+        mModel.drawName(canvas, mPaint, mSelectedIndex, mChars);
+        canvas.restore();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
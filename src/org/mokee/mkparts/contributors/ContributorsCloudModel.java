@@ -0,0 +1,623 @@
+/*
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.contributors;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The layout of every contributor name in the cloud, in cloud coordinates (a square of
+ * {@link #getSize()} units). Immutable once loaded, so it can be shared between the UI
+ * thread and the tile renderer.
+ * <p>
+ * The layout is read from the contributors database only once, and stored in a binary file
+ * that is memory mapped on the next loads. The file holds a header followed by the arrays
+ * of the model, every one of them 4-byte aligned:
+ * <pre>
+ *   int magic, int version, int size, long date, int count, int maxNameLength, int namesLength
+ *   int[count] ids
+ *   float[count] x, y, text size, text width, text height
+ *   float[count * 4] bounds
+ *   int[count + 1] name offsets
+ *   byte[count] rotations
+ *   byte[namesLength] names (UTF-8)
+ * </pre>
+ */
+/* package */ final class ContributorsCloudModel {
+
+    private static final String TAG = "ContributorsCloud";
+
+    private static final int LAYOUT_MAGIC = 0x4d4b434c; // MKCL
+    private static final int LAYOUT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    // Cells per side of the spatial index
+    private static final int GRID_SIZE = 32;
+
+    private final int mSize;
+    private final long mDate;
+    private final int mCount;
+    private final int mMaxNameLength;
+
+    private final IntBuffer mIds;
+    private final FloatBuffer mX;
+    private final FloatBuffer mY;
+    private final FloatBuffer mTextSize;
+    private final FloatBuffer mTextWidth;
+    private final FloatBuffer mTextHeight;
+    // left, top, right, bottom of every (rotated) name, 4 floats per name
+    private final FloatBuffer mBounds;
+    private final IntBuffer mNameOffsets;
+    private final ByteBuffer mRotation;
+    private final ByteBuffer mNames;
+
+    // Spatial index: the names intersecting cell c are
+    // mCellItems[mCellStart[c]] .. mCellItems[mCellStart[c + 1] - 1]
+    private final int[] mCellStart = new int[GRID_SIZE * GRID_SIZE + 1];
+    private int[] mCellItems;
+
+    private ContributorsCloudModel(ByteBuffer buffer) {
+        buffer.order(ByteOrder.nativeOrder());
+        mSize = buffer.getInt(8);
+        mDate = buffer.getLong(12);
+        mCount = buffer.getInt(20);
+        mMaxNameLength = buffer.getInt(24);
+        final int namesLength = buffer.getInt(28);
+
+        int offset = HEADER_SIZE;
+        mIds = slice(buffer, offset, mCount * 4).asIntBuffer();
+        offset += mCount * 4;
+        mX = slice(buffer, offset, mCount * 4).asFloatBuffer();
+        offset += mCount * 4;
+        mY = slice(buffer, offset, mCount * 4).asFloatBuffer();
+        offset += mCount * 4;
+        mTextSize = slice(buffer, offset, mCount * 4).asFloatBuffer();
+        offset += mCount * 4;
+        mTextWidth = slice(buffer, offset, mCount * 4).asFloatBuffer();
+        offset += mCount * 4;
+        mTextHeight = slice(buffer, offset, mCount * 4).asFloatBuffer();
+        offset += mCount * 4;
+        mBounds = slice(buffer, offset, mCount * 16).asFloatBuffer();
+        offset += mCount * 16;
+        mNameOffsets = slice(buffer, offset, (mCount + 1) * 4).asIntBuffer();
+        offset += (mCount + 1) * 4;
+        mRotation = slice(buffer, offset, mCount);
+        offset += align(mCount);
+        mNames = slice(buffer, offset, namesLength);
+
+        buildIndex();
+    }
+
+    /**
+     * Load the cloud layout of the contributors database, scaled to a cloud of
+     * {@code size} units. The layout file is (re)built from the database when it doesn't
+     * exist or belongs to another version of the database.
+     *
+     * @return the model or null if the database doesn't hold a valid cloud
+     */
+    public static ContributorsCloudModel load(Context context, SQLiteDatabase db, int size) {
+        // The date of the database identifies its version
+        long date = readDate(db);
+        if (date == -1) {
+            return null;
+        }
+
+        File layout = getLayoutFile(context, size);
+        ByteBuffer buffer = mapLayout(layout, size, date);
+        if (buffer == null) {
+            buffer = buildLayout(db, size, date);
+            if (buffer == null) {
+                return null;
+            }
+            writeLayout(layout, buffer);
+        }
+        return new ContributorsCloudModel(buffer);
+    }
+
+    /**
+     * Load the cloud layout without the database, when the date of the database is known
+     *
+     * @return the model or null if the layout has to be built from the database
+     */
+    public static ContributorsCloudModel loadCached(Context context, int size, long date) {
+        ByteBuffer buffer = mapLayout(getLayoutFile(context, size), size, date);
+        return buffer != null ? new ContributorsCloudModel(buffer) : null;
+    }
+
+    /**
+     * @return the date of the contributors database, which identifies its version, or -1
+     */
+    public static long readDate(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("select value from info where key = ?;", new String[]{"date"});
+        if (c == null) {
+            // We don't have a valid cursor reference
+            return -1;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static File getLayoutFile(Context context, int size) {
+        return new File(context.getCacheDir(), "contributors_cloud_" + size + ".layout");
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the date of the contributors database the model was loaded from
+     */
+    public long getDate() {
+        return mDate;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getId(int index) {
+        return mIds.get(index);
+    }
+
+    public float getX(int index) {
+        return mX.get(index);
+    }
+
+    public float getY(int index) {
+        return mY.get(index);
+    }
+
+    public int getRotation(int index) {
+        return mRotation.get(index);
+    }
+
+    public float getTextWidth(int index) {
+        return mTextWidth.get(index);
+    }
+
+    public float getTextHeight(int index) {
+        return mTextHeight.get(index);
+    }
+
+    /**
+     * @return a buffer large enough to hold any name, to pass to
+     *         {@link #drawName(Canvas, Paint, int, char[])}
+     */
+    public char[] newNameBuffer() {
+        return new char[mMaxNameLength];
+    }
+
+    /**
+     * @return the position of the contributor in the model or -1 if it isn't in the cloud
+     */
+    public int indexOf(int id) {
+        for (int i = 0; i < mCount; i++) {
+            if (mIds.get(i) == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether the (rotated) name at {@code index} intersects the passed rectangle
+     */
+    public boolean intersects(int index, float left, float top, float right, float bottom) {
+        final int b = index * 4;
+        return mBounds.get(b) < right && left < mBounds.get(b + 2)
+                && mBounds.get(b + 1) < bottom && top < mBounds.get(b + 3);
+    }
+
+    /**
+     * @return a buffer large enough to hold the result of any
+     *         {@link #findIn(float, float, float, float, int[])}
+     */
+    public int[] newIndexBuffer() {
+        return new int[mCellItems.length];
+    }
+
+    /**
+     * Find the names whose (rotated) bounds intersect a rectangle of the cloud, looking
+     * only at the cells of the spatial index the rectangle overlaps
+     *
+     * @param out a buffer from {@link #newIndexBuffer()}, where the positions of the names
+     *        in the model are stored in ascending order, i.e. in drawing order
+     * @return the number of names found
+     */
+    public int findIn(float left, float top, float right, float bottom, int[] out) {
+        final int cellRight = getCell(right);
+        final int cellBottom = getCell(bottom);
+        int count = 0;
+        for (int cy = getCell(top); cy <= cellBottom; cy++) {
+            for (int cx = getCell(left); cx <= cellRight; cx++) {
+                final int cell = cy * GRID_SIZE + cx;
+                for (int j = mCellStart[cell]; j < mCellStart[cell + 1]; j++) {
+                    final int i = mCellItems[j];
+                    if (intersects(i, left, top, right, bottom)) {
+                        out[count++] = i;
+                    }
+                }
+            }
+        }
+
+        // Names spanning several cells were found more than once
+        Arrays.sort(out, 0, count);
+        int unique = 0;
+        for (int j = 0; j < count; j++) {
+            if (unique == 0 || out[unique - 1] != out[j]) {
+                out[unique++] = out[j];
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Find the name under a point of the cloud. Names are matched by their rotated bounds,
+     * and when several of them are close enough, the nearest and smallest one wins.
+     *
+     * @param x the x coordinate of the point, in cloud coordinates
+     * @param y the y coordinate of the point, in cloud coordinates
+     * @param slop how far from the point a name can be, in cloud coordinates
+     * @return the position of the name in the model or -1 if there isn't any
+     */
+    public int findAt(float x, float y, float slop) {
+        final int left = getCell(x - slop);
+        final int top = getCell(y - slop);
+        final int right = getCell(x + slop);
+        final int bottom = getCell(y + slop);
+
+        int found = -1;
+        float foundDistance = Float.MAX_VALUE;
+        float foundArea = Float.MAX_VALUE;
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                final int cell = cy * GRID_SIZE + cx;
+                for (int j = mCellStart[cell]; j < mCellStart[cell + 1]; j++) {
+                    final int i = mCellItems[j];
+                    final int b = i * 4;
+                    final float dx = Math.max(0f,
+                            Math.max(mBounds.get(b) - x, x - mBounds.get(b + 2)));
+                    final float dy = Math.max(0f,
+                            Math.max(mBounds.get(b + 1) - y, y - mBounds.get(b + 3)));
+                    final float distance = Math.max(dx, dy);
+                    if (distance > slop || distance > foundDistance) {
+                        continue;
+                    }
+                    final float area = (mBounds.get(b + 2) - mBounds.get(b))
+                            * (mBounds.get(b + 3) - mBounds.get(b + 1));
+                    if (distance < foundDistance || area < foundArea) {
+                        found = i;
+                        foundDistance = distance;
+                        foundArea = area;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Draw the name at {@code index}. The canvas must be mapped to cloud coordinates.
+     * The text size of the paint is changed.
+     *
+     * @param chars a buffer from {@link #newNameBuffer()}, where the name is decoded
+     */
+    public void drawName(Canvas canvas, Paint paint, int index, char[] chars) {
+        final int length = decodeName(index, chars);
+        final float x = mX.get(index);
+        final float y = mY.get(index);
+        final float w = mTextWidth.get(index);
+        final float h = mTextHeight.get(index);
+        final int r = mRotation.get(index);
+        paint.setTextSize(mTextSize.get(index));
+
+        if (r == 0) {
+            // Horizontal
+            canvas.drawText(chars, 0, length, x, y, paint);
+        } else if (r == -1) {
+            // Vertical (-90 rotation)
+            canvas.save();
+            canvas.translate(h, w - h);
+            canvas.rotate(-90, x, y);
+            canvas.drawText(chars, 0, length, x, y, paint);
+            canvas.restore();
+        } else {
+            // Vertical (+90 rotation)
+            canvas.save();
+            canvas.translate(h / 2, -h);
+            canvas.rotate(90, x, y);
+            canvas.drawText(chars, 0, length, x, y, paint);
+            canvas.restore();
+        }
+    }
+
+    /**
+     * Decode the UTF-8 name at {@code index} into {@code chars}
+     *
+     * @return the number of chars of the name
+     */
+    private int decodeName(int index, char[] chars) {
+        final int end = mNameOffsets.get(index + 1);
+        int length = 0;
+        for (int i = mNameOffsets.get(index); i < end; ) {
+            final int b = mNames.get(i++) & 0xff;
+            int cp;
+            if (b < 0x80) {
+                cp = b;
+            } else if (b < 0xe0) {
+                cp = ((b & 0x1f) << 6) | (mNames.get(i++) & 0x3f);
+            } else if (b < 0xf0) {
+                cp = ((b & 0x0f) << 12) | ((mNames.get(i++) & 0x3f) << 6)
+                        | (mNames.get(i++) & 0x3f);
+            } else {
+                cp = ((b & 0x07) << 18) | ((mNames.get(i++) & 0x3f) << 12)
+                        | ((mNames.get(i++) & 0x3f) << 6) | (mNames.get(i++) & 0x3f);
+            }
+            length += Character.toChars(cp, chars, length);
+        }
+        return length;
+    }
+
+    private void buildIndex() {
+        // Count the names of every cell
+        final int[] counts = new int[GRID_SIZE * GRID_SIZE];
+        int total = 0;
+        for (int i = 0; i < mCount; i++) {
+            final int b = i * 4;
+            final int right = getCell(mBounds.get(b + 2));
+            final int bottom = getCell(mBounds.get(b + 3));
+            for (int cy = getCell(mBounds.get(b + 1)); cy <= bottom; cy++) {
+                for (int cx = getCell(mBounds.get(b)); cx <= right; cx++) {
+                    counts[cy * GRID_SIZE + cx]++;
+                    total++;
+                }
+            }
+        }
+
+        // And then store them contiguously
+        for (int c = 0; c < counts.length; c++) {
+            mCellStart[c + 1] = mCellStart[c] + counts[c];
+            counts[c] = mCellStart[c];
+        }
+        mCellItems = new int[total];
+        for (int i = 0; i < mCount; i++) {
+            final int b = i * 4;
+            final int right = getCell(mBounds.get(b + 2));
+            final int bottom = getCell(mBounds.get(b + 3));
+            for (int cy = getCell(mBounds.get(b + 1)); cy <= bottom; cy++) {
+                for (int cx = getCell(mBounds.get(b)); cx <= right; cx++) {
+                    mCellItems[counts[cy * GRID_SIZE + cx]++] = i;
+                }
+            }
+        }
+    }
+
+    private int getCell(float v) {
+        final int cell = (int) (v * GRID_SIZE / mSize);
+        return Math.max(0, Math.min(GRID_SIZE - 1, cell));
+    }
+
+    private static ByteBuffer mapLayout(File layout, int size, long date) {
+        if (!layout.exists()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(layout, "r")) {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt(0) != LAYOUT_MAGIC || buffer.getInt(4) != LAYOUT_VERSION
+                    || buffer.getInt(8) != size || buffer.getLong(12) != date) {
+                // Stale layout, from another version of the database
+                return null;
+            }
+            final int count = buffer.getInt(20);
+            final int namesLength = buffer.getInt(28);
+            if (count < 0 || namesLength < 0
+                    || channel.size() != getLayoutLength(count, namesLength)) {
+                // Truncated layout, e.g. written while the disk was full
+                return null;
+            }
+            return buffer;
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to map contributors cloud layout", ex);
+            return null;
+        }
+    }
+
+    private static long getLayoutLength(int count, int namesLength) {
+        return HEADER_SIZE + count * 4L * 6 + count * 16L + (count + 1) * 4L
+                + align(count) + namesLength;
+    }
+
+    private static void writeLayout(File layout, ByteBuffer buffer) {
+        File temp = new File(layout.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(temp)) {
+            os.getChannel().write((ByteBuffer) buffer.duplicate().rewind());
+            os.getFD().sync();
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write contributors cloud layout", ex);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(layout)) {
+            temp.delete();
+        }
+    }
+
+    private static ByteBuffer buildLayout(SQLiteDatabase db, int size, long date) {
+        // Extract original image size
+        Cursor c = db.rawQuery("select value from info where key = ?;", new String[]{"orig_size"});
+        if (c == null || !c.moveToFirst()) {
+            // We don't have a valid cursor reference
+            return null;
+        }
+        int osize = c.getInt(0);
+        c.close();
+
+        // Query the metadata table to extract all the commits information
+        c = db.rawQuery("select id, name, x, y, r, fs from metadata;", null);
+        if (c == null) {
+            // We don't have a valid cursor reference
+            return null;
+        }
+        try {
+            final int count = c.getCount();
+            final byte[][] names = new byte[count][];
+            int namesLength = 0;
+            int maxNameLength = 0;
+            while (c.moveToNext() && c.getPosition() < count) {
+                String name = c.getString(1);
+                if (name == null) {
+                    name = "";
+                }
+                names[c.getPosition()] = name.getBytes(StandardCharsets.UTF_8);
+                namesLength += names[c.getPosition()].length;
+                maxNameLength = Math.max(maxNameLength, name.length());
+            }
+
+            final int length = (int) getLayoutLength(count, namesLength);
+            final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.nativeOrder());
+            buffer.putInt(LAYOUT_MAGIC);
+            buffer.putInt(LAYOUT_VERSION);
+            buffer.putInt(size);
+            buffer.putLong(date);
+            buffer.putInt(count);
+            buffer.putInt(maxNameLength);
+            buffer.putInt(namesLength);
+
+            final int idsOffset = HEADER_SIZE;
+            final int xOffset = idsOffset + count * 4;
+            final int yOffset = xOffset + count * 4;
+            final int fsOffset = yOffset + count * 4;
+            final int wOffset = fsOffset + count * 4;
+            final int hOffset = wOffset + count * 4;
+            final int boundsOffset = hOffset + count * 4;
+            final int nameOffsetsOffset = boundsOffset + count * 16;
+            final int rotationOffset = nameOffsetsOffset + (count + 1) * 4;
+            final int namesOffset = rotationOffset + align(count);
+
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
+            Rect textBounds = new Rect();
+            RectF bounds = new RectF();
+            Matrix matrix = new Matrix();
+            int nameOffset = 0;
+
+            c.moveToPosition(-1);
+            while (c.moveToNext() && c.getPosition() < count) {
+                final int i = c.getPosition();
+                int id = c.getInt(0);
+                String name = new String(names[i], StandardCharsets.UTF_8);
+                float x = translate(c.getFloat(2), osize, size);
+                float y = translate(c.getFloat(3), osize, size);
+                int r = c.getInt(4);
+                float fs = translate(c.getFloat(5), osize, size);
+                if (id < 0) {
+                    y -= translate(fs, osize, size);
+                }
+
+                paint.setTextSize(fs);
+                paint.getTextBounds(name, 0, name.length(), textBounds);
+                float w = paint.measureText(name);
+                float h = textBounds.height();
+
+                bounds.set(textBounds);
+                bounds.offset(x, y);
+                getTransform(x, y, w, h, r, matrix);
+                matrix.mapRect(bounds);
+                // Leave room for antialiasing
+                bounds.inset(-1f, -1f);
+
+                buffer.putInt(idsOffset + i * 4, id);
+                buffer.putFloat(xOffset + i * 4, x);
+                buffer.putFloat(yOffset + i * 4, y);
+                buffer.putFloat(fsOffset + i * 4, fs);
+                buffer.putFloat(wOffset + i * 4, w);
+                buffer.putFloat(hOffset + i * 4, h);
+                buffer.putFloat(boundsOffset + i * 16, bounds.left);
+                buffer.putFloat(boundsOffset + i * 16 + 4, bounds.top);
+                buffer.putFloat(boundsOffset + i * 16 + 8, bounds.right);
+                buffer.putFloat(boundsOffset + i * 16 + 12, bounds.bottom);
+                buffer.putInt(nameOffsetsOffset + i * 4, nameOffset);
+                buffer.put(rotationOffset + i, (byte) r);
+                buffer.position(namesOffset + nameOffset);
+                buffer.put(names[i]);
+                nameOffset += names[i].length;
+            }
+            buffer.putInt(nameOffsetsOffset + count * 4, nameOffset);
+            buffer.rewind();
+            return buffer;
+
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void getTransform(float x, float y, float w, float h, int r, Matrix matrix) {
+        if (r == 0) {
+            matrix.reset();
+        } else if (r == -1) {
+            matrix.setTranslate(h, w - h);
+            matrix.preRotate(-90, x, y);
+        } else {
+            matrix.setTranslate(h / 2, -h);
+            matrix.preRotate(90, x, y);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static int align(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static float translate(float v, int ssize, int dsize) {
+        return (v * dsize) / ssize;
+    }
+}
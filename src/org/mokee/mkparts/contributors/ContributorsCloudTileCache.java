@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.contributors;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Persists the pre-rendered tiles of the cloud, so reopening the contributors screen
+ * doesn't have to rasterize them again. The tiles are stored deflated, after a header with
+ * everything that changes their content (the date of the database, the size of the cloud
+ * and the accent color), so the cache is discarded when any of them changes.
+ */
+/* package */ final class ContributorsCloudTileCache {
+
+    private static final String TAG = "ContributorsCloud";
+
+    private static final int CACHE_MAGIC = 0x4d4b4354; // MKCT
+    private static final int CACHE_VERSION = 1;
+
+    private ContributorsCloudTileCache() {
+    }
+
+    /**
+     * Read the cached tiles into {@code tiles}, which must be already allocated
+     *
+     * @return whether the cache matches the passed key and all the tiles were read
+     */
+    public static boolean read(File file, long date, int size, int color, Bitmap[] tiles) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (is.readInt() != CACHE_MAGIC || is.readInt() != CACHE_VERSION
+                    || is.readLong() != date || is.readInt() != size
+                    || is.readInt() != color || is.readInt() != tiles.length) {
+                return false;
+            }
+
+            final Inflater inflater = new Inflater();
+            try {
+                final InflaterInputStream zis = new InflaterInputStream(is, inflater);
+                final byte[] pixels = new byte[tiles[0].getByteCount()];
+                final ByteBuffer buffer = ByteBuffer.wrap(pixels);
+                for (Bitmap tile : tiles) {
+                    int read = 0;
+                    while (read < pixels.length) {
+                        int n = zis.read(pixels, read, pixels.length - read);
+                        if (n == -1) {
+                            return false;
+                        }
+                        read += n;
+                    }
+                    buffer.rewind();
+                    tile.copyPixelsFromBuffer(buffer);
+                }
+                return true;
+            } finally {
+                inflater.end();
+            }
+
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to read contributors cloud cache", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Replace the cache with the passed tiles
+     */
+    public static void write(File file, long date, int size, int color, Bitmap[] tiles) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)))) {
+            os.writeInt(CACHE_MAGIC);
+            os.writeInt(CACHE_VERSION);
+            os.writeLong(date);
+            os.writeInt(size);
+            os.writeInt(color);
+            os.writeInt(tiles.length);
+
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                final DeflaterOutputStream zos = new DeflaterOutputStream(os, deflater);
+                final byte[] pixels = new byte[tiles[0].getByteCount()];
+                final ByteBuffer buffer = ByteBuffer.wrap(pixels);
+                for (Bitmap tile : tiles) {
+                    buffer.rewind();
+                    tile.copyPixelsToBuffer(buffer);
+                    zos.write(pixels);
+                }
+                zos.finish();
+            } finally {
+                deflater.end();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write contributors cloud cache", ex);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.contributors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Draws the contributors cloud as a pyramid of fixed-size tiles. Only the tiles that
+ * intersect the visible area are rendered (in background), at the level of detail that
+ * matches the current zoom, so the memory used by the cloud is bounded by the size of the
+ * view and not by the zoom level. While a tile is being rendered, the always available
+ * lowest level is drawn in its place. The selected contributor is not part of the tiles,
+ * see {@link ContributorsCloudHighlightDrawable}.
+ */
+public class ContributorsCloudTileDrawable extends Drawable {
+
+    // Side of every tile, in pixels
+    private static final int TILE_SIZE = 256;
+    // Resolution of the whole cloud at level 0 (2x2 tiles)
+    private static final int BASE_RESOLUTION = TILE_SIZE * 2;
+    // Level 6 renders the cloud at 32768x32768, enough for the maximum zoom of the view
+    private static final int MAX_LEVEL = 6;
+    // Levels rendered up front (and cached on disk): level 1 is the one the whole cloud
+    // is usually displayed at, and level 0 is the fallback of every other level
+    private static final int PRERENDERED_LEVELS = 2;
+
+    private static final int MAX_POOLED_TILES = 4;
+    private static final float SQRT_2 = 1.4143f;
+
+    private final ContributorsCloudModel mModel;
+    private final int mColor;
+    private final Bitmap[] mBaseTiles = new Bitmap[4];
+    private final Paint mTilePaint;
+
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mTileRect = new RectF();
+    private final RectF mBaseTileRect = new RectF();
+    private float mDisplayScale;
+
+    private final LruCache<Long, Bitmap> mTiles;
+    // Evicted tiles wait a frame before going back to the pool, see recycleTile()
+    private final ArrayList<Bitmap> mEvictedTiles = new ArrayList<>();
+    private final ArrayList<Bitmap> mRetiredTiles = new ArrayList<>();
+    private final ArrayDeque<Bitmap> mBitmapPool = new ArrayDeque<>();
+
+    private final Object mLock = new Object();
+    private long[] mPendingTiles = new long[16];
+    private int mPendingCount;
+    // Tiles taken by the render thread whose result wasn't put in mTiles yet
+    private final HashSet<Long> mRenderingTiles = new HashSet<>();
+    private boolean mRenderScheduled;
+    private boolean mReleased;
+
+    private final Handler mHandler;
+    private HandlerThread mRenderThread;
+    private Handler mRenderHandler;
+
+    // Only used by the render thread
+    private final Canvas mRenderCanvas = new Canvas();
+    private final Paint mRenderPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
+    private final char[] mRenderChars;
+    private final int[] mRenderIndexes;
+
+    public ContributorsCloudTileDrawable(ContributorsCloudModel model, int colorForeground) {
+        mModel = model;
+        mColor = colorForeground;
+        mRenderChars = model.newNameBuffer();
+        mRenderIndexes = model.newIndexBuffer();
+        mHandler = new Handler(Looper.getMainLooper());
+
+        mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        mTilePaint.setColor(colorForeground);
+
+        mVisibleRect.set(0, 0, model.getSize(), model.getSize());
+        mDisplayScale = 1f;
+
+        mTiles = new LruCache<Long, Bitmap>(16) {
+            @Override
+            protected void entryRemoved(boolean evicted, Long key,
+                    Bitmap oldValue, Bitmap newValue) {
+                recycleTile(oldValue);
+            }
+        };
+    }
+
+    /**
+     * Render the lowest levels of the pyramid, or read them from the cache if it is still
+     * valid. Must be called before the drawable is displayed, and from a background thread.
+     *
+     * @param cacheFile where the pre-rendered tiles are cached
+     */
+    public void prepare(File cacheFile) {
+        int count = 0;
+        for (int level = 0; level < PRERENDERED_LEVELS; level++) {
+            count += 1 << (2 * (level + 1));
+        }
+        final long[] keys = new long[count];
+        final Bitmap[] tiles = new Bitmap[count];
+        int i = 0;
+        for (int level = 0; level < PRERENDERED_LEVELS; level++) {
+            final int n = 1 << (level + 1);
+            for (int y = 0; y < n; y++) {
+                for (int x = 0; x < n; x++) {
+                    keys[i] = makeKey(level, x, y);
+                    tiles[i] = obtainTile();
+                    i++;
+                }
+            }
+        }
+
+        if (!ContributorsCloudTileCache.read(cacheFile, mModel.getDate(),
+                mModel.getSize(), mColor, tiles)) {
+            for (i = 0; i < count; i++) {
+                tiles[i].eraseColor(0);
+                renderTile(keys[i], tiles[i]);
+            }
+            ContributorsCloudTileCache.write(cacheFile, mModel.getDate(),
+                    mModel.getSize(), mColor, tiles);
+        }
+
+        for (i = 0; i < count; i++) {
+            if (i < mBaseTiles.length) {
+                mBaseTiles[i] = tiles[i];
+            } else {
+                mTiles.put(keys[i], tiles[i]);
+            }
+        }
+    }
+
+    /**
+     * Release all the tiles and stop the render thread. The drawable can't be used after this.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mPendingCount = 0;
+            mRenderingTiles.clear();
+            if (mRenderThread != null) {
+                mRenderThread.quitSafely();
+                mRenderThread = null;
+                mRenderHandler = null;
+            }
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mTiles.evictAll();
+        synchronized (mBitmapPool) {
+            mEvictedTiles.clear();
+            mRetiredTiles.clear();
+            mBitmapPool.clear();
+        }
+    }
+
+    public ContributorsCloudModel getModel() {
+        return mModel;
+    }
+
+    /**
+     * Update the part of the cloud visible in the view
+     *
+     * @param displayRect the bounds of the drawable in view coordinates
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     */
+    public void setViewport(RectF displayRect, int viewWidth, int viewHeight) {
+        final int size = mModel.getSize();
+        if (displayRect.width() <= 0 || viewWidth <= 0 || viewHeight <= 0) {
+            return;
+        }
+
+        final float scale = displayRect.width() / size;
+        mDisplayScale = scale;
+        mVisibleRect.set(-displayRect.left / scale, -displayRect.top / scale,
+                (viewWidth - displayRect.left) / scale, (viewHeight - displayRect.top) / scale);
+        if (!mVisibleRect.intersect(0, 0, size, size)) {
+            mVisibleRect.setEmpty();
+        }
+
+        // Enough tiles to fill the view at the highest resolution a level is drawn at
+        // (see getLevel()) and a row/column of margin on each side
+        final int cols = (int) Math.ceil(viewWidth * SQRT_2 / TILE_SIZE) + 2;
+        final int rows = (int) Math.ceil(viewHeight * SQRT_2 / TILE_SIZE) + 2;
+        if (mTiles.maxSize() != cols * rows) {
+            mTiles.resize(cols * rows);
+        }
+        invalidateSelf();
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        final int level = getLevel(mDisplayScale);
+        final int tiles = 1 << (level + 1);
+        final float tileSize = (float) mModel.getSize() / tiles;
+
+        final int left = clamp((int) (mVisibleRect.left / tileSize), tiles);
+        final int top = clamp((int) (mVisibleRect.top / tileSize), tiles);
+        final int right = clamp((int) Math.ceil(mVisibleRect.right / tileSize) - 1, tiles);
+        final int bottom = clamp((int) Math.ceil(mVisibleRect.bottom / tileSize) - 1, tiles);
+
+        synchronized (mLock) {
+            mPendingCount = 0;
+        }
+        releaseRetiredTiles();
+        if (!mVisibleRect.isEmpty()) {
+            for (int y = top; y <= bottom; y++) {
+                for (int x = left; x <= right; x++) {
+                    final long key = makeKey(level, x, y);
+                    mTileRect.set(x * tileSize, y * tileSize,
+                            (x + 1) * tileSize, (y + 1) * tileSize);
+                    Bitmap tile = level == 0 ? mBaseTiles[y * 2 + x] : mTiles.get(key);
+                    if (tile != null) {
+                        canvas.drawBitmap(tile, null, mTileRect, mTilePaint);
+                    } else {
+                        drawFallback(canvas, mTileRect);
+                        requestTile(key);
+                    }
+                }
+            }
+        }
+        scheduleRender();
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mModel.getSize();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mModel.getSize();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mTilePaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mTilePaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    private void drawFallback(Canvas canvas, RectF rect) {
+        final float baseSize = mModel.getSize() / 2f;
+        canvas.save();
+        canvas.clipRect(rect);
+        for (int i = 0; i < mBaseTiles.length; i++) {
+            if (mBaseTiles[i] == null) {
+                continue;
+            }
+            float l = (i % 2) * baseSize;
+            float t = (i / 2) * baseSize;
+            if (rect.intersects(l, t, l + baseSize, t + baseSize)) {
+                mBaseTileRect.set(l, t, l + baseSize, t + baseSize);
+                canvas.drawBitmap(mBaseTiles[i], null, mBaseTileRect, mTilePaint);
+            }
+        }
+        canvas.restore();
+    }
+
+    private int getLevel(float displayScale) {
+        // Pick the level closest to the displayed resolution, so that tiles are
+        // drawn at between 0.7x and 1.4x their rendered size
+        final float resolution = mModel.getSize() * displayScale;
+        int level = Math.round((float) (Math.log(resolution / BASE_RESOLUTION) / Math.log(2)));
+        return Math.max(0, Math.min(MAX_LEVEL, level));
+    }
+
+    private void requestTile(long key) {
+        synchronized (mLock) {
+            if (mRenderingTiles.contains(key)) {
+                // Already being rendered, or about to be put in mTiles
+                return;
+            }
+            if (mPendingCount == mPendingTiles.length) {
+                long[] pending = new long[mPendingTiles.length * 2];
+                System.arraycopy(mPendingTiles, 0, pending, 0, mPendingCount);
+                mPendingTiles = pending;
+            }
+            mPendingTiles[mPendingCount++] = key;
+        }
+    }
+
+    private void scheduleRender() {
+        synchronized (mLock) {
+            if (mReleased || mRenderScheduled || mPendingCount == 0) {
+                return;
+            }
+            if (mRenderThread == null) {
+                mRenderThread = new HandlerThread(
+                        "ContributorsCloudTiles", Process.THREAD_PRIORITY_BACKGROUND);
+                mRenderThread.start();
+                mRenderHandler = new Handler(mRenderThread.getLooper());
+            }
+            mRenderScheduled = true;
+            mRenderHandler.post(mRenderRunnable);
+        }
+    }
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final long key;
+                synchronized (mLock) {
+                    if (mReleased || mPendingCount == 0) {
+                        mRenderScheduled = false;
+                        return;
+                    }
+                    // Requests of the last frame are the only ones that matter,
+                    // so just take the next one
+                    key = mPendingTiles[--mPendingCount];
+                    mRenderingTiles.add(key);
+                }
+
+                final Bitmap tile = obtainTile();
+                renderTile(key, tile);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mReleased) {
+                            return;
+                        }
+                        synchronized (mLock) {
+                            mRenderingTiles.remove(key);
+                        }
+                        if (mTiles.get(key) != null) {
+                            // Never drawn, so it can be reused right away
+                            synchronized (mBitmapPool) {
+                                poolTileLocked(tile);
+                            }
+                            return;
+                        }
+                        mTiles.put(key, tile);
+                        invalidateSelf();
+                    }
+                });
+            }
+        }
+    };
+
+    private void renderTile(long key, Bitmap bitmap) {
+        final int level = (int) (key >>> 32);
+        final int x = (int) ((key >>> 16) & 0xffff);
+        final int y = (int) (key & 0xffff);
+        final float tileSize = (float) mModel.getSize() / (1 << (level + 1));
+        final float left = x * tileSize;
+        final float top = y * tileSize;
+        final float right = left + tileSize;
+        final float bottom = top + tileSize;
+
+        mRenderCanvas.setBitmap(bitmap);
+        mRenderCanvas.save();
+        mRenderCanvas.scale(TILE_SIZE / tileSize, TILE_SIZE / tileSize);
+        mRenderCanvas.translate(-left, -top);
+        final int count = mModel.findIn(left, top, right, bottom, mRenderIndexes);
+        for (int i = 0; i < count; i++) {
+            mModel.drawName(mRenderCanvas, mRenderPaint, mRenderIndexes[i], mRenderChars);
+        }
+        mRenderCanvas.restore();
+        mRenderCanvas.setBitmap(null);
+    }
+
+    private Bitmap obtainTile() {
+        Bitmap bitmap;
+        synchronized (mBitmapPool) {
+            bitmap = mBitmapPool.poll();
+        }
+        if (bitmap == null) {
+            // Tiles are only alpha masks, they are tinted when drawn
+            return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ALPHA_8);
+        }
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    private void recycleTile(Bitmap bitmap) {
+        // An evicted tile may still be referenced by the last recorded frame, so it can't
+        // be rendered into again until a frame without it has been drawn
+        synchronized (mBitmapPool) {
+            if (!mReleased) {
+                mEvictedTiles.add(bitmap);
+            }
+        }
+    }
+
+    private void releaseRetiredTiles() {
+        synchronized (mBitmapPool) {
+            // Tiles evicted before the previous frame are no longer referenced by any
+            // frame, those evicted since are only retired for now
+            for (int i = 0; i < mRetiredTiles.size(); i++) {
+                poolTileLocked(mRetiredTiles.get(i));
+            }
+            mRetiredTiles.clear();
+            mRetiredTiles.addAll(mEvictedTiles);
+            mEvictedTiles.clear();
+        }
+    }
+
+    private void poolTileLocked(Bitmap bitmap) {
+        // A few tiles are kept around to be rendered into again, the rest are left to
+        // the garbage collector
+        if (!mReleased && mBitmapPool.size() < MAX_POOLED_TILES) {
+            mBitmapPool.push(bitmap);
+        }
+    }
+
+    private static long makeKey(int level, int x, int y) {
+        return ((long) level << 32) | ((long) x << 16) | y;
+    }
+
+    private static int clamp(int value, int tiles) {
+        return Math.max(0, Math.min(tiles - 1, value));
+    }
+}
@@ -236,6 +236,9 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
     private OnLongClickListener mLongClickListener;
     private OnScaleChangeListener mScaleChangeListener;
 
+    // Overlay composited on top of the image
+    private ContributorsCloudHighlightDrawable mHighlight;
+
     private int mIvTop, mIvRight, mIvBottom, mIvLeft;
     private FlingRunnable mCurrentFlingRunnable;
     private int mScrollEdge = EDGE_BOTH;
@@ -359,6 +362,11 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
             mGestureDetector.setOnDoubleTapListener(null);
         }
 
+        if (null != imageView && null != mHighlight) {
+            imageView.getOverlay().remove(mHighlight);
+        }
+        mHighlight = null;
+
         // Clear listeners too
         mMatrixChangeListener = null;
         mPhotoTapListener = null;
@@ -627,6 +635,25 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         mMaxScale = maximumScale;
     }
 
+    /**
+     * Set the layer that is composited over the image, following its matrix
+     */
+    public void setHighlightDrawable(ContributorsCloudHighlightDrawable highlight) {
+        ImageView imageView = getImageView();
+        if (null == imageView) {
+            return;
+        }
+
+        if (null != mHighlight) {
+            imageView.getOverlay().remove(mHighlight);
+        }
+        mHighlight = highlight;
+        if (null != mHighlight) {
+            imageView.getOverlay().add(mHighlight);
+            updateHighlight(imageView, getDrawMatrix());
+        }
+    }
+
     public void setOnLongClickListener(OnLongClickListener listener) {
         mLongClickListener = listener;
     }
@@ -885,6 +912,7 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
 
             checkImageViewScaleType();
             imageView.setImageMatrix(matrix);
+            updateHighlight(imageView, matrix);
 
             // Call MatrixChangedListener if needed
             if (null != mMatrixChangeListener) {
@@ -896,6 +924,14 @@ public class ContributorsCloudViewController implements View.OnTouchListener,
         }
     }
 
+    private void updateHighlight(ImageView imageView, Matrix matrix) {
+        if (null != mHighlight) {
+            mHighlight.setBounds(0, 0, imageView.getWidth(), imageView.getHeight());
+            mHighlight.setDrawMatrix(matrix,
+                    imageView.getPaddingLeft(), imageView.getPaddingTop());
+        }
+    }
+
     /**
      * Calculate Matrix for FIT_CENTER
      *
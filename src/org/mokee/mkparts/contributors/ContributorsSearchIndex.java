@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.contributors;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Trigram index over the search filter (names and usernames) of every contributor.
+ * <p>
+ * Contributors are searched by substring, which FTS tokenizers can't answer (and CJK names
+ * are a single token for them), so every 3 chars substring of the lowercased filter is
+ * indexed instead. A query then only has to check the contributors that hold all of its
+ * trigrams, rather than scanning the whole metadata table.
+ */
+/* package */ final class ContributorsSearchIndex {
+
+    private static final String TAG = "ContributorsCloud";
+
+    private static final String TABLE = "metadata_trigrams";
+
+    /* package */ static final int TRIGRAM_LENGTH = 3;
+
+    private ContributorsSearchIndex() {
+    }
+
+    /**
+     * Build the index in a writable copy of the contributors database
+     */
+    public static void build(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("drop table if exists " + TABLE + ";");
+            db.execSQL("create table " + TABLE + " (trigram TEXT, id NUMBER);");
+
+            SQLiteStatement insert = db.compileStatement(
+                    "insert into " + TABLE + " (trigram, id) values (?, ?);");
+            Cursor c = db.rawQuery("select id, filter from metadata where id > 0;", null);
+            try {
+                while (c.moveToNext()) {
+                    String filter = c.getString(1);
+                    if (filter == null) {
+                        continue;
+                    }
+                    for (String trigram : getTrigrams(filter.toLowerCase(Locale.ROOT))) {
+                        insert.bindString(1, trigram);
+                        insert.bindLong(2, c.getInt(0));
+                        insert.executeInsert();
+                    }
+                }
+            } finally {
+                c.close();
+                insert.close();
+            }
+
+            db.execSQL("create index " + TABLE + "_idx_1 on " + TABLE + " (trigram, id);");
+            db.setTransactionSuccessful();
+        } catch (SQLException ex) {
+            Log.e(TAG, "Failed to build contributors search index", ex);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return whether the database holds the index
+     */
+    public static boolean exists(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("select count(*) from sqlite_master where type = 'table' "
+                + "and name = ?;", new String[]{TABLE});
+        if (c == null) {
+            return false;
+        }
+        try {
+            return c.moveToFirst() && c.getInt(0) > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the condition that selects the candidates of a query, to be used as
+     * {@code where id in (<condition>)}. The query must be lowercased and have at least
+     * {@link #TRIGRAM_LENGTH} chars.
+     *
+     * @param args where the arguments of the condition are appended
+     */
+    public static String getCandidatesSelection(String query, List<String> args) {
+        final Set<String> trigrams = getTrigrams(query);
+        args.addAll(trigrams);
+
+        StringBuilder sb = new StringBuilder("select id from " + TABLE + " where trigram in (");
+        for (int i = 0; i < trigrams.size(); i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        sb.append(") group by id having count(distinct trigram) = ")
+                .append(trigrams.size());
+        return sb.toString();
+    }
+
+    private static Set<String> getTrigrams(String text) {
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + TRIGRAM_LENGTH <= text.length(); i++) {
+            trigrams.add(text.substring(i, i + TRIGRAM_LENGTH));
+        }
+        return trigrams;
+    }
+}
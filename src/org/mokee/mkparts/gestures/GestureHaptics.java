@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.gestures;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.mokee.mkparts.R;
+
+/**
+ * Haptic feedback for the gesture actions. The effects are built once, the vibrator
+ * capability and the ringer mode are cached, and the vibration is posted to a handler
+ * so it never delays the action itself.
+ */
+/* package */ class GestureHaptics {
+
+    private static final String TAG = "GestureHaptics";
+
+    private static final String MKPARTS_PACKAGE = "org.mokee.mkparts";
+    private static final int ACTION_COUNT = TouchscreenGestureConstants.ACTION_VOLUME_UP + 1;
+    private static final long DEFAULT_DURATION = 50;
+
+    private final Vibrator mVibrator;
+    private final Handler mHandler;
+    private final boolean mHasVibrator;
+    private final Runnable[] mVibrations = new Runnable[ACTION_COUNT];
+
+    private volatile int mRingerMode;
+    private volatile boolean mEnabled = true;
+
+    private final BroadcastReceiver mRingerModeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mRingerMode = intent.getIntExtra(AudioManager.EXTRA_RINGER_MODE,
+                    AudioManager.RINGER_MODE_NORMAL);
+        }
+    };
+
+    public GestureHaptics(Context context, Handler handler) {
+        mVibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+        mHandler = handler;
+        mHasVibrator = mVibrator != null && mVibrator.hasVibrator();
+        if (!mHasVibrator) {
+            return;
+        }
+
+        final String[] patterns = getPatterns(context);
+        for (int action = 1; action < ACTION_COUNT; action++) {
+            final VibrationEffect effect = createEffect(
+                    action < patterns.length ? patterns[action] : null);
+            mVibrations[action] = new Runnable() {
+                @Override
+                public void run() {
+                    mVibrator.vibrate(effect);
+                }
+            };
+        }
+
+        final AudioManager audioManager =
+                (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mRingerMode = audioManager.getRingerMode();
+        context.registerReceiver(mRingerModeReceiver,
+                new IntentFilter(AudioManager.RINGER_MODE_CHANGED_ACTION), null, handler);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Vibrate for the passed action, unless the feedback is off or the device is silenced
+     */
+    public void perform(int action) {
+        if (!mHasVibrator || !mEnabled || mRingerMode == AudioManager.RINGER_MODE_SILENT
+                || action <= 0 || action >= ACTION_COUNT) {
+            return;
+        }
+        mHandler.post(mVibrations[action]);
+    }
+
+    private static String[] getPatterns(Context context) {
+        // KeyHandler runs in system_server, so the patterns come from our own package
+        try {
+            final Resources res = context.createPackageContext(MKPARTS_PACKAGE, 0)
+                    .getResources();
+            return res.getStringArray(R.array.config_touchscreenGestureHapticPatterns);
+        } catch (PackageManager.NameNotFoundException | Resources.NotFoundException ex) {
+            Log.w(TAG, "Unable to load the gesture haptic patterns", ex);
+            return new String[0];
+        }
+    }
+
+    private static VibrationEffect createEffect(String pattern) {
+        if (!TextUtils.isEmpty(pattern)) {
+            try {
+                final String[] values = pattern.split(",");
+                final long[] timings = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    timings[i] = Long.parseLong(values[i].trim());
+                }
+                if (timings.length == 1) {
+                    return VibrationEffect.createOneShot(timings[0],
+                            VibrationEffect.DEFAULT_AMPLITUDE);
+                }
+                return VibrationEffect.createWaveform(timings, -1);
+            } catch (IllegalArgumentException ex) {
+                Log.w(TAG, "Invalid gesture haptic pattern: " + pattern, ex);
+            }
+        }
+        return VibrationEffect.createOneShot(DEFAULT_DURATION, VibrationEffect.DEFAULT_AMPLITUDE);
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.gestures;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Measures the time from a gesture key event to the end of its action, which covers the
+ * proximity check, the dispatch to the handler and the action itself (e.g. starting the
+ * activity). Every gesture is traced as an async atrace section, and the latencies of the
+ * last {@link #WINDOW} gestures of each action are kept to be dumped as a histogram.
+ * <p>
+ * A gesture can be accepted while the action of the previous one is still running, so
+ * every gesture carries its own {@link Gesture} from {@link #start} to its end.
+ */
+/* package */ class GestureLatencyTracker {
+
+    /**
+     * A gesture being tracked, ended by either {@link #finish} or {@link #cancel}
+     */
+    public static final class Gesture {
+        private final long mStartTime;
+        private final int mCookie;
+        private boolean mEnded;
+
+        private Gesture(long startTime, int cookie) {
+            mStartTime = startTime;
+            mCookie = cookie;
+        }
+    }
+
+    private static final String TRACE_NAME = "MKPartsGesture";
+
+    private static final int WINDOW = 64;
+    // Upper bounds of the histogram buckets in ms, the last bucket is unbounded
+    private static final int[] BUCKETS = { 25, 50, 100, 200, 400, 800, 1600 };
+
+    private static final String[] ACTION_NAMES = {
+        null,
+        "flashlight",
+        "camera",
+        "browser",
+        "dialer",
+        "email",
+        "messages",
+        "play_pause_music",
+        "previous_track",
+        "next_track",
+        "volume_down",
+        "volume_up",
+    };
+
+    // Ring buffers of latencies in ms, indexed by action
+    private final int[][] mSamples = new int[ACTION_NAMES.length][WINDOW];
+    private final int[] mCounts = new int[ACTION_NAMES.length];
+
+    private int mNextCookie;
+
+    /**
+     * A gesture key event was accepted
+     *
+     * @param eventTime the uptime of the key event
+     * @return the gesture to pass to {@link #finish} or {@link #cancel}
+     */
+    public synchronized Gesture start(long eventTime) {
+        final Gesture gesture = new Gesture(eventTime, ++mNextCookie);
+        Trace.asyncTraceBegin(Trace.TRACE_TAG_INPUT, TRACE_NAME, gesture.mCookie);
+        return gesture;
+    }
+
+    /**
+     * The action of the gesture was performed
+     */
+    public synchronized void finish(Gesture gesture, int action) {
+        if (!endTrace(gesture)) {
+            return;
+        }
+        if (action <= 0 || action >= ACTION_NAMES.length) {
+            return;
+        }
+        final long latency = SystemClock.uptimeMillis() - gesture.mStartTime;
+        mSamples[action][mCounts[action] % WINDOW] = (int) Math.min(latency, Integer.MAX_VALUE);
+        mCounts[action]++;
+    }
+
+    /**
+     * The gesture was dropped, e.g. because the proximity sensor was covered
+     */
+    public synchronized void cancel(Gesture gesture) {
+        endTrace(gesture);
+    }
+
+    private boolean endTrace(Gesture gesture) {
+        if (gesture == null || gesture.mEnded) {
+            return false;
+        }
+        Trace.asyncTraceEnd(Trace.TRACE_TAG_INPUT, TRACE_NAME, gesture.mCookie);
+        gesture.mEnded = true;
+        return true;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Gesture latency (last " + WINDOW + " gestures per action, ms):");
+        boolean empty = true;
+        final int[] histogram = new int[BUCKETS.length + 1];
+        for (int action = 1; action < ACTION_NAMES.length; action++) {
+            final int count = Math.min(mCounts[action], WINDOW);
+            if (count == 0) {
+                continue;
+            }
+            empty = false;
+
+            long sum = 0;
+            int max = 0;
+            Arrays.fill(histogram, 0);
+            for (int i = 0; i < count; i++) {
+                final int latency = mSamples[action][i];
+                sum += latency;
+                max = Math.max(max, latency);
+                int bucket = 0;
+                while (bucket < BUCKETS.length && latency > BUCKETS[bucket]) {
+                    bucket++;
+                }
+                histogram[bucket]++;
+            }
+
+            final StringBuilder sb = new StringBuilder("  ").append(ACTION_NAMES[action])
+                    .append(": n=").append(mCounts[action])
+                    .append(" avg=").append(sum / count)
+                    .append(" max=").append(max)
+                    .append(" [");
+            for (int bucket = 0; bucket < histogram.length; bucket++) {
+                if (bucket > 0) {
+                    sb.append(' ');
+                }
+                if (bucket < BUCKETS.length) {
+                    sb.append("<=").append(BUCKETS[bucket]);
+                } else {
+                    sb.append('>').append(BUCKETS[bucket - 1]);
+                }
+                sb.append(':').append(histogram[bucket]);
+            }
+            pw.println(sb.append(']'));
+        }
+        if (empty) {
+            pw.println("  no gestures recorded");
+        }
+    }
+}
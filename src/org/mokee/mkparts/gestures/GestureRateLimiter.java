@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.gestures;
+
+/**
+ * Decides whether a gesture should be dispatched, before any wakelock is taken for it.
+ * <p>
+ * Gestures of the same action that follow a dispatched one within its coalescing window
+ * are folded into it (the touch firmware may report a single swipe more than once), and
+ * every action has a token bucket that limits how many gestures can be dispatched in a
+ * burst. The volume actions use a short window and a larger bucket, so that repeating
+ * the gesture keeps adjusting the volume smoothly.
+ * <p>
+ * Only used from the input thread.
+ */
+/* package */ class GestureRateLimiter {
+
+    private static final int ACTION_COUNT = TouchscreenGestureConstants.ACTION_VOLUME_UP + 1;
+
+    private static final int COALESCE_WINDOW = 400;
+    private static final int BUCKET_CAPACITY = 3;
+    private static final int BUCKET_REFILL_INTERVAL = 1000;
+
+    private static final int VOLUME_COALESCE_WINDOW = 100;
+    private static final int VOLUME_BUCKET_CAPACITY = 10;
+    private static final int VOLUME_BUCKET_REFILL_INTERVAL = 150;
+
+    private final long[] mLastDispatchTime = new long[ACTION_COUNT];
+    private final long[] mLastRefillTime = new long[ACTION_COUNT];
+    private final int[] mTokens = new int[ACTION_COUNT];
+
+    public GestureRateLimiter() {
+        for (int action = 0; action < ACTION_COUNT; action++) {
+            mLastDispatchTime[action] = Long.MIN_VALUE / 2;
+            mTokens[action] = getCapacity(action);
+        }
+    }
+
+    /**
+     * @param eventTime the uptime of the gesture key event
+     * @return whether the gesture should be dispatched
+     */
+    public boolean tryAcquire(int action, long eventTime) {
+        if (action < 0 || action >= ACTION_COUNT) {
+            return true;
+        }
+        if (eventTime - mLastDispatchTime[action] < getCoalesceWindow(action)) {
+            return false;
+        }
+
+        final int capacity = getCapacity(action);
+        final int interval = getRefillInterval(action);
+        if (mTokens[action] < capacity) {
+            final long refill = (eventTime - mLastRefillTime[action]) / interval;
+            if (refill > 0) {
+                mTokens[action] = (int) Math.min(capacity, mTokens[action] + refill);
+                mLastRefillTime[action] += refill * interval;
+            }
+        }
+        if (mTokens[action] == 0) {
+            return false;
+        }
+        if (mTokens[action] == capacity) {
+            // Start refilling from the first token taken out of a full bucket
+            mLastRefillTime[action] = eventTime;
+        }
+        mTokens[action]--;
+        mLastDispatchTime[action] = eventTime;
+        return true;
+    }
+
+    private static boolean isVolumeAction(int action) {
+        return action == TouchscreenGestureConstants.ACTION_VOLUME_DOWN
+                || action == TouchscreenGestureConstants.ACTION_VOLUME_UP;
+    }
+
+    private static int getCoalesceWindow(int action) {
+        return isVolumeAction(action) ? VOLUME_COALESCE_WINDOW : COALESCE_WINDOW;
+    }
+
+    private static int getCapacity(int action) {
+        return isVolumeAction(action) ? VOLUME_BUCKET_CAPACITY : BUCKET_CAPACITY;
+    }
+
+    private static int getRefillInterval(int action) {
+        return isVolumeAction(action) ? VOLUME_BUCKET_REFILL_INTERVAL : BUCKET_REFILL_INTERVAL;
+    }
+}
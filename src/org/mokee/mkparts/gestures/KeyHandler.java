@@ -20,40 +20,42 @@ package org.mokee.mkparts.gestures;
 
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.Manifest;
+import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.session.MediaSessionLegacyHelper;
-import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.os.UserHandle;
-import android.os.Vibrator;
 import android.provider.Settings;
 import android.util.Log;
-import android.util.SparseIntArray;
 import android.view.KeyEvent;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.DeviceKeyHandler;
 
 import mokee.providers.MKSettings;
 
-import java.util.List;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
 
 public class KeyHandler implements DeviceKeyHandler {
 
@@ -61,27 +63,46 @@ public class KeyHandler implements DeviceKeyHandler {
 
     private static final String GESTURE_WAKEUP_REASON = "mkparts-gesture-wakeup";
     private static final int GESTURE_REQUEST = 0;
+    private static final int GESTURE_PROXIMITY_CHECKED = 1;
     private static final int GESTURE_WAKELOCK_DURATION = 3000;
     private static final int EVENT_PROCESS_WAKELOCK_DURATION = 500;
+    // How long a proximity reading is trusted for the following gestures
+    private static final int PROXIMITY_FRESHNESS = 1000;
+
+    // Logs the gesture latency stats, e.g. adb shell am broadcast -a <action>
+    private static final String DUMP_LATENCY_ACTION =
+            "org.mokee.mkparts.gestures.DUMP_LATENCY";
 
     private final Context mContext;
     private final AudioManager mAudioManager;
     private final PowerManager mPowerManager;
     private final WakeLock mGestureWakeLock;
+    // Runs the gesture actions, on their own thread so a slow one (e.g. toggling
+    // the torch) can't hold up the callbacks handled by mHandler, and vice versa
     private final EventHandler mEventHandler;
+    private final Handler mHandler;
     private final CameraManager mCameraManager;
-    private final Vibrator mVibrator;
+    private final GestureHaptics mHaptics;
+    private final LaunchTargetCache mLaunchTargets;
+    private final GestureLatencyTracker mLatencyTracker = new GestureLatencyTracker();
+    private final GestureRateLimiter mRateLimiter = new GestureRateLimiter();
 
-    private final SparseIntArray mActionMapping = new SparseIntArray();
+    // Replaced as a whole on updates, so the input thread never sees a partial mapping
+    private volatile ActionTable mActionTable = ActionTable.EMPTY;
     private final boolean mProximityWakeSupported;
-    private SensorManager mSensorManager;
-    private Sensor mProximitySensor;
-    private WakeLock mProximityWakeLock;
+    private ProximityGate mProximityGate;
+    private volatile int mProximityAction;
+    private volatile GestureLatencyTracker.Gesture mProximityGesture;
     private boolean mDefaultProximity;
     private int mProximityTimeOut;
 
-    private String mRearCameraId;
-    private boolean mTorchEnabled;
+    private volatile String mRearCameraId;
+    private volatile boolean mTorchEnabled;
+
+    // Snapshot of the settings read while handling key events, kept up to date
+    // by mSettingsObserver so the input path doesn't have to query the providers
+    private volatile boolean mSetupCompleted;
+    private volatile boolean mProximityWakeEnabled;
 
     private final BroadcastReceiver mUpdateReceiver = new BroadcastReceiver() {
         @Override
@@ -90,15 +111,68 @@ public class KeyHandler implements DeviceKeyHandler {
                     TouchscreenGestureConstants.UPDATE_EXTRA_KEYCODE_MAPPING);
             int[] actions = intent.getIntArrayExtra(
                     TouchscreenGestureConstants.UPDATE_EXTRA_ACTION_MAPPING);
-            mActionMapping.clear();
             if (keycodes != null && actions != null && keycodes.length == actions.length) {
-                for (int i = 0; i < keycodes.length; i++) {
-                    mActionMapping.put(keycodes[i], actions[i]);
-                }
+                mActionTable = new ActionTable(keycodes, actions);
+            } else {
+                mActionTable = ActionTable.EMPTY;
+            }
+        }
+    };
+
+    private final BroadcastReceiver mDumpReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final StringWriter writer = new StringWriter();
+            dump(new PrintWriter(writer));
+            for (String line : writer.toString().split("\n")) {
+                Log.i(TAG, line);
             }
         }
     };
 
+    /**
+     * Immutable scan code to action map, open addressed with linear probing
+     */
+    private static final class ActionTable {
+        static final ActionTable EMPTY = new ActionTable(new int[0], new int[0]);
+
+        private final int[] mKeys;
+        private final int[] mValues;
+        private final int mMask;
+
+        ActionTable(int[] keycodes, int[] actions) {
+            // Keep the load factor at 50% at most, the table is tiny anyway
+            int capacity = 2;
+            while (capacity < keycodes.length * 2) {
+                capacity <<= 1;
+            }
+            mKeys = new int[capacity];
+            mValues = new int[capacity];
+            mMask = capacity - 1;
+
+            Arrays.fill(mKeys, -1);
+            for (int i = 0; i < keycodes.length; i++) {
+                int slot = keycodes[i] & mMask;
+                while (mKeys[slot] != -1 && mKeys[slot] != keycodes[i]) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = keycodes[i];
+                mValues[slot] = actions[i];
+            }
+        }
+
+        int get(int keycode, int defaultValue) {
+            int slot = keycode & mMask;
+            while (mKeys[slot] != -1) {
+                if (mKeys[slot] == keycode) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mMask;
+            }
+            return defaultValue;
+        }
+    }
+
     public KeyHandler(final Context context) {
         mContext = context;
 
@@ -108,12 +182,26 @@ public class KeyHandler implements DeviceKeyHandler {
         mGestureWakeLock = mPowerManager.newWakeLock(
                 PowerManager.PARTIAL_WAKE_LOCK, "MKPartsGestureWakeLock");
 
-        mEventHandler = new EventHandler();
+        final HandlerThread actionThread = new HandlerThread("MKPartsGestureActions",
+                Process.THREAD_PRIORITY_FOREGROUND);
+        actionThread.start();
+        mEventHandler = new EventHandler(actionThread.getLooper());
+        mHandler = new Handler();
+
+        mHaptics = new GestureHaptics(mContext, mHandler);
 
         mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        mCameraManager.registerTorchCallback(new TorchModeCallback(), mEventHandler);
+        mCameraManager.registerTorchCallback(new TorchModeCallback(), mHandler);
 
-        mVibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+
+        mLaunchTargets = new LaunchTargetCache(mContext);
+        // Look the flashlight up ahead of time, it needs to go through every camera
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                getRearCameraId();
+            }
+        });
 
         final Resources resources = mContext.getResources();
         mProximityWakeSupported = resources.getBoolean(
@@ -125,15 +213,63 @@ public class KeyHandler implements DeviceKeyHandler {
             mDefaultProximity = mContext.getResources().getBoolean(
                     org.mokee.platform.internal.R.bool.config_proximityCheckOnWakeEnabledByDefault);
 
-            mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-            mProximitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
-            mProximityWakeLock = mPowerManager.newWakeLock(
-                    PowerManager.PARTIAL_WAKE_LOCK, "MKPartsProximityWakeLock");
+            final SensorManager sensorManager =
+                    (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+            final Sensor proximitySensor = sensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+            if (proximitySensor != null) {
+                mProximityGate = new ProximityGate(sensorManager, proximitySensor,
+                        mPowerManager, mHandler, mProximityTimeOut, PROXIMITY_FRESHNESS);
+            }
         }
         mContext.registerReceiver(mUpdateReceiver,
                 new IntentFilter(TouchscreenGestureConstants.UPDATE_PREFS_ACTION));
+        mContext.registerReceiver(mDumpReceiver, new IntentFilter(DUMP_LATENCY_ACTION),
+                Manifest.permission.DUMP, mHandler);
+
+        new SettingsObserver(mHandler).observe();
+    }
+
+    private class SettingsObserver extends ContentObserver {
+        SettingsObserver(Handler handler) {
+            super(handler);
+        }
+
+        void observe() {
+            final ContentResolver resolver = mContext.getContentResolver();
+            resolver.registerContentObserver(Settings.Secure.getUriFor(
+                    Settings.Secure.USER_SETUP_COMPLETE), false, this);
+            resolver.registerContentObserver(MKSettings.System.getUriFor(
+                    MKSettings.System.PROXIMITY_ON_WAKE), false, this);
+            resolver.registerContentObserver(MKSettings.System.getUriFor(
+                    MKSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK), false, this);
+            update();
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            update();
+        }
+
+        private void update() {
+            final ContentResolver resolver = mContext.getContentResolver();
+            mSetupCompleted = Settings.Secure.getInt(resolver,
+                    Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
+            mProximityWakeEnabled = MKSettings.System.getInt(resolver,
+                    MKSettings.System.PROXIMITY_ON_WAKE, mDefaultProximity ? 1 : 0) == 1;
+            mHaptics.setEnabled(MKSettings.System.getInt(resolver,
+                    MKSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0);
+        }
     }
 
+    private final ProximityGate.Callback mProximityCallback = new ProximityGate.Callback() {
+        @Override
+        public void onProximityChecked(boolean near) {
+            // Decide on the action thread, where the delayed request may fire meanwhile
+            mEventHandler.obtainMessage(GESTURE_PROXIMITY_CHECKED, near ? 1 : 0, 0)
+                    .sendToTarget();
+        }
+    };
+
     private class TorchModeCallback extends CameraManager.TorchCallback {
         @Override
         public void onTorchModeChanged(String cameraId, boolean enabled) {
@@ -148,20 +284,25 @@ public class KeyHandler implements DeviceKeyHandler {
         }
     }
 
+    public void dump(PrintWriter pw) {
+        mLatencyTracker.dump(pw);
+    }
+
     public KeyEvent handleKeyEvent(final KeyEvent event) {
-        final int action = mActionMapping.get(event.getScanCode(), -1);
-        if (action < 0 || event.getAction() != KeyEvent.ACTION_UP || !hasSetupCompleted()) {
+        final int action = mActionTable.get(event.getScanCode(), -1);
+        if (action < 0 || event.getAction() != KeyEvent.ACTION_UP || !mSetupCompleted) {
             return event;
         }
 
-        if (action != 0 && !mEventHandler.hasMessages(GESTURE_REQUEST)) {
-            final Message msg = getMessageForAction(action);
-            final boolean proxWakeEnabled = MKSettings.System.getInt(mContext.getContentResolver(),
-                    MKSettings.System.PROXIMITY_ON_WAKE, mDefaultProximity ? 1 : 0) == 1;
-            if (mProximityWakeSupported && proxWakeEnabled && mProximitySensor != null) {
+        if (action != 0 && !mEventHandler.hasMessages(GESTURE_REQUEST)
+                && mRateLimiter.tryAcquire(action, event.getEventTime())) {
+            final GestureLatencyTracker.Gesture gesture =
+                    mLatencyTracker.start(event.getEventTime());
+            final Message msg = getMessageForAction(action, gesture);
+            if (mProximityWakeSupported && mProximityWakeEnabled && mProximityGate != null) {
                 mGestureWakeLock.acquire(2 * mProximityTimeOut);
                 mEventHandler.sendMessageDelayed(msg, mProximityTimeOut);
-                processEvent(action);
+                processEvent(action, gesture);
             } else {
                 mGestureWakeLock.acquire(EVENT_PROCESS_WAKELOCK_DURATION);
                 mEventHandler.sendMessage(msg);
@@ -171,47 +312,59 @@ public class KeyHandler implements DeviceKeyHandler {
         return null;
     }
 
-    private boolean hasSetupCompleted() {
-        return Settings.Secure.getInt(mContext.getContentResolver(),
-                Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
-    }
-
-    private void processEvent(final int action) {
-        mProximityWakeLock.acquire();
-        mSensorManager.registerListener(new SensorEventListener() {
-            @Override
-            public void onSensorChanged(SensorEvent event) {
-                mProximityWakeLock.release();
-                mSensorManager.unregisterListener(this);
-                if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-                    // The sensor took too long; ignoring
-                    return;
-                }
-                mEventHandler.removeMessages(GESTURE_REQUEST);
-                if (event.values[0] == mProximitySensor.getMaximumRange()) {
-                    Message msg = getMessageForAction(action);
-                    mEventHandler.sendMessage(msg);
-                }
-            }
-
-            @Override
-            public void onAccuracyChanged(Sensor sensor, int accuracy) {
-                // Ignore
-            }
-
-        }, mProximitySensor, SensorManager.SENSOR_DELAY_FASTEST);
+    private void processEvent(final int action, final GestureLatencyTracker.Gesture gesture) {
+        mProximityAction = action;
+        mProximityGesture = gesture;
+        mProximityGate.check(mProximityCallback);
     }
 
-    private Message getMessageForAction(final int action) {
+    private Message getMessageForAction(final int action,
+            final GestureLatencyTracker.Gesture gesture) {
         Message msg = mEventHandler.obtainMessage(GESTURE_REQUEST);
         msg.arg1 = action;
+        msg.obj = gesture;
         return msg;
     }
 
     private class EventHandler extends Handler {
+        EventHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(final Message msg) {
-            switch (msg.arg1) {
+            switch (msg.what) {
+                case GESTURE_REQUEST:
+                    handleGesture(msg.arg1, (GestureLatencyTracker.Gesture) msg.obj);
+                    break;
+                case GESTURE_PROXIMITY_CHECKED:
+                    if (!hasMessages(GESTURE_REQUEST)) {
+                        // The sensor took too long; ignoring
+                        break;
+                    }
+                    removeMessages(GESTURE_REQUEST);
+                    if (msg.arg1 == 0) {
+                        handleGesture(mProximityAction, mProximityGesture);
+                    } else {
+                        mLatencyTracker.cancel(mProximityGesture);
+                    }
+                    break;
+            }
+        }
+
+        private void handleGesture(final int action,
+                final GestureLatencyTracker.Gesture gesture) {
+            Trace.traceBegin(Trace.TRACE_TAG_INPUT, "MKPartsGestureAction");
+            try {
+                performAction(action);
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_INPUT);
+            }
+            mLatencyTracker.finish(gesture, action);
+        }
+
+        private void performAction(final int action) {
+            switch (action) {
                 case TouchscreenGestureConstants.ACTION_CAMERA:
                     launchCamera();
                     break;
@@ -254,16 +407,15 @@ public class KeyHandler implements DeviceKeyHandler {
         final Intent intent = new Intent(mokee.content.Intent.ACTION_SCREEN_CAMERA_GESTURE);
         mContext.sendBroadcastAsUser(intent, UserHandle.CURRENT,
                 Manifest.permission.STATUS_BAR_SERVICE);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_CAMERA);
     }
 
     private void launchBrowser() {
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("http:")));
+        final Intent intent = mLaunchTargets.getBrowserIntent();
         startActivitySafely(intent);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_BROWSER);
     }
 
     private void launchDialer() {
@@ -271,28 +423,24 @@ public class KeyHandler implements DeviceKeyHandler {
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
         final Intent intent = new Intent(Intent.ACTION_DIAL, null);
         startActivitySafely(intent);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_DIALER);
     }
 
     private void launchEmail() {
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("mailto:")));
+        final Intent intent = mLaunchTargets.getEmailIntent();
         startActivitySafely(intent);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_EMAIL);
     }
 
     private void launchMessages() {
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final String defaultApplication = Settings.Secure.getString(
-                mContext.getContentResolver(), "sms_default_application");
-        final PackageManager pm = mContext.getPackageManager();
-        final Intent intent = pm.getLaunchIntentForPackage(defaultApplication);
+        final Intent intent = mLaunchTargets.getMessagesIntent();
         if (intent != null) {
             startActivitySafely(intent);
-            doHapticFeedback();
+            mHaptics.perform(TouchscreenGestureConstants.ACTION_MESSAGES);
         }
     }
 
@@ -306,35 +454,35 @@ public class KeyHandler implements DeviceKeyHandler {
             } catch (CameraAccessException e) {
                 // Ignore
             }
-            doHapticFeedback();
+            mHaptics.perform(TouchscreenGestureConstants.ACTION_FLASHLIGHT);
         }
     }
 
     private void playPauseMusic() {
         dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_PLAY_PAUSE_MUSIC);
     }
 
     private void previousTrack() {
         dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PREVIOUS);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_PREVIOUS_TRACK);
     }
 
     private void nextTrack() {
         dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_NEXT);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_NEXT_TRACK);
     }
 
     private void volumeDown() {
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mAudioManager.adjustStreamVolume(AudioManager.STREAM_MUSIC, AudioManager.ADJUST_LOWER, 0);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_VOLUME_DOWN);
     }
 
     private void volumeUp() {
         mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mAudioManager.adjustStreamVolume(AudioManager.STREAM_MUSIC, AudioManager.ADJUST_RAISE, 0);
-        doHapticFeedback();
+        mHaptics.perform(TouchscreenGestureConstants.ACTION_VOLUME_UP);
     }
 
     private void dispatchMediaKeyWithWakeLockToMediaSession(final int keycode) {
@@ -366,20 +514,6 @@ public class KeyHandler implements DeviceKeyHandler {
         }
     }
 
-    private void doHapticFeedback() {
-        if (mVibrator == null || !mVibrator.hasVibrator()) {
-            return;
-        }
-
-        if (mAudioManager.getRingerMode() != AudioManager.RINGER_MODE_SILENT) {
-            final boolean enabled = MKSettings.System.getInt(mContext.getContentResolver(),
-                    MKSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
-            if (enabled) {
-                mVibrator.vibrate(50);
-            }
-        }
-    }
-
     private String getRearCameraId() {
         if (mRearCameraId == null) {
             try {
@@ -398,13 +532,4 @@ public class KeyHandler implements DeviceKeyHandler {
         }
         return mRearCameraId;
     }
-
-    private Intent getLaunchableIntent(Intent intent) {
-        PackageManager pm = mContext.getPackageManager();
-        List<ResolveInfo> resInfo = pm.queryIntentActivities(intent, 0);
-        if (resInfo.isEmpty()) {
-            return null;
-        }
-        return pm.getLaunchIntentForPackage(resInfo.get(0).activityInfo.packageName);
-    }
 }
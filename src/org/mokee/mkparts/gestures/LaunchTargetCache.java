@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.gestures;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.provider.Settings;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.util.List;
+
+/**
+ * Resolves the activities launched by the gesture actions ahead of time, on the background
+ * thread, so performing a gesture doesn't have to query the package manager. The targets
+ * are resolved again whenever packages or the default apps change.
+ */
+/* package */ class LaunchTargetCache {
+
+    private static final String SMS_DEFAULT_APPLICATION = "sms_default_application";
+
+    private static final class Targets {
+        final Intent browser;
+        final Intent email;
+        final Intent messages;
+
+        Targets(Intent browser, Intent email, Intent messages) {
+            this.browser = browser;
+            this.email = email;
+            this.messages = messages;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    // null while the targets are unknown or stale
+    private volatile Targets mTargets;
+    private int mGeneration;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int generation;
+            synchronized (LaunchTargetCache.this) {
+                generation = mGeneration;
+            }
+            final Targets targets = resolve();
+            synchronized (LaunchTargetCache.this) {
+                // Don't publish targets that were invalidated while resolving them
+                if (generation == mGeneration) {
+                    mTargets = targets;
+                }
+            }
+        }
+    };
+
+    private final BroadcastReceiver mInvalidateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public LaunchTargetCache(Context context) {
+        mContext = context;
+        mHandler = BackgroundThread.getHandler();
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mInvalidateReceiver, UserHandle.ALL,
+                packageFilter, null, mHandler);
+
+        final IntentFilter defaultsFilter = new IntentFilter();
+        defaultsFilter.addAction(Intent.ACTION_PREFERRED_ACTIVITY_CHANGED);
+        defaultsFilter.addAction(Intent.ACTION_USER_SWITCHED);
+        mContext.registerReceiverAsUser(mInvalidateReceiver, UserHandle.ALL,
+                defaultsFilter, null, mHandler);
+
+        mContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(SMS_DEFAULT_APPLICATION), false,
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+
+        mHandler.post(mRefreshRunnable);
+    }
+
+    public Intent getBrowserIntent() {
+        final Targets targets = mTargets;
+        return targets != null ? copy(targets.browser) : resolveBrowserIntent();
+    }
+
+    public Intent getEmailIntent() {
+        final Targets targets = mTargets;
+        return targets != null ? copy(targets.email) : resolveEmailIntent();
+    }
+
+    public Intent getMessagesIntent() {
+        final Targets targets = mTargets;
+        return targets != null ? copy(targets.messages) : resolveMessagesIntent();
+    }
+
+    private void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            mTargets = null;
+        }
+        // Coalesce bursts of package broadcasts into a single refresh
+        mHandler.removeCallbacks(mRefreshRunnable);
+        mHandler.post(mRefreshRunnable);
+    }
+
+    private Targets resolve() {
+        return new Targets(resolveBrowserIntent(), resolveEmailIntent(),
+                resolveMessagesIntent());
+    }
+
+    private Intent resolveBrowserIntent() {
+        return getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("http:")));
+    }
+
+    private Intent resolveEmailIntent() {
+        return getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("mailto:")));
+    }
+
+    private Intent resolveMessagesIntent() {
+        final String defaultApplication = Settings.Secure.getString(
+                mContext.getContentResolver(), SMS_DEFAULT_APPLICATION);
+        if (defaultApplication == null) {
+            return null;
+        }
+        return mContext.getPackageManager().getLaunchIntentForPackage(defaultApplication);
+    }
+
+    private Intent getLaunchableIntent(Intent intent) {
+        PackageManager pm = mContext.getPackageManager();
+        List<ResolveInfo> resInfo = pm.queryIntentActivities(intent, 0);
+        if (resInfo.isEmpty()) {
+            return null;
+        }
+        return pm.getLaunchIntentForPackage(resInfo.get(0).activityInfo.packageName);
+    }
+
+    private static Intent copy(Intent intent) {
+        // The callers add their own flags to the intent
+        return intent != null ? new Intent(intent) : null;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mkparts.gestures;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Answers whether the proximity sensor is covered before a gesture is performed.
+ * <p>
+ * A single listener is registered only while there are pending checks and is unregistered
+ * as soon as the first reading arrives (or the timeout expires). Checks requested while the
+ * sensor is warming up are answered by the same reading, and the last reading is reused for
+ * checks requested within the freshness window, so back-to-back gestures don't have to wait
+ * for the sensor again.
+ */
+/* package */ class ProximityGate implements SensorEventListener {
+
+    public interface Callback {
+        /**
+         * Called on the gate handler, or on the calling thread when a fresh reading is known
+         */
+        void onProximityChecked(boolean near);
+    }
+
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+    private final WakeLock mWakeLock;
+    private final Handler mHandler;
+    private final int mTimeout;
+    private final long mFreshness;
+
+    private final ArrayList<Callback> mPending = new ArrayList<>();
+    private final ArrayList<Callback> mDispatching = new ArrayList<>();
+    private boolean mListening;
+    private boolean mHasReading;
+    private boolean mLastNear;
+    private long mLastReadingTime;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProximityGate.this) {
+                // Nobody gets an answer; the callers fall back on their own timeout
+                mPending.clear();
+                stopListeningLocked();
+            }
+        }
+    };
+
+    /**
+     * @param timeout how long to wait for the sensor before giving up, in ms
+     * @param freshness how long a reading can be reused for new checks, in ms
+     */
+    public ProximityGate(SensorManager sensorManager, Sensor sensor, PowerManager powerManager,
+            Handler handler, int timeout, long freshness) {
+        mSensorManager = sensorManager;
+        mSensor = sensor;
+        mWakeLock = powerManager.newWakeLock(
+                PowerManager.PARTIAL_WAKE_LOCK, "MKPartsProximityWakeLock");
+        mHandler = handler;
+        mTimeout = timeout;
+        mFreshness = freshness;
+    }
+
+    /**
+     * Check the proximity sensor, reusing the last reading when it's recent enough
+     */
+    public void check(Callback callback) {
+        final boolean near;
+        synchronized (this) {
+            if (!mHasReading || SystemClock.elapsedRealtime() - mLastReadingTime > mFreshness) {
+                mPending.add(callback);
+                if (!mListening) {
+                    mListening = true;
+                    mWakeLock.acquire();
+                    mSensorManager.registerListener(this, mSensor,
+                            SensorManager.SENSOR_DELAY_FASTEST, mHandler);
+                    mHandler.postDelayed(mTimeoutRunnable, mTimeout);
+                }
+                return;
+            }
+            near = mLastNear;
+        }
+        callback.onProximityChecked(near);
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        final boolean near;
+        synchronized (this) {
+            if (!mListening) {
+                // Late event delivered after we unregistered
+                return;
+            }
+            near = event.values[0] < mSensor.getMaximumRange();
+            mLastNear = near;
+            mLastReadingTime = SystemClock.elapsedRealtime();
+            mHasReading = true;
+            stopListeningLocked();
+
+            mDispatching.addAll(mPending);
+            mPending.clear();
+        }
+
+        // Only ever touched from the handler thread
+        for (int i = 0; i < mDispatching.size(); i++) {
+            mDispatching.get(i).onProximityChecked(near);
+        }
+        mDispatching.clear();
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // Ignore
+    }
+
+    private void stopListeningLocked() {
+        if (!mListening) {
+            return;
+        }
+        mListening = false;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mSensorManager.unregisterListener(this);
+        mWakeLock.release();
+    }
+}
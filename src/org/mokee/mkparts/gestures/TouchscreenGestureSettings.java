@@ -25,6 +25,7 @@ import android.os.Bundle;
 import android.os.UserHandle;
 import android.support.v7.preference.ListPreference;
 import android.support.v7.preference.PreferenceManager;
+import android.util.SparseBooleanArray;
 
 import mokee.hardware.MKHardwareManager;
 import mokee.hardware.TouchscreenGesture;
@@ -39,6 +40,9 @@ public class TouchscreenGestureSettings extends SettingsPreferenceFragment {
     private static final String KEY_TOUCHSCREEN_GESTURE = "touchscreen_gesture";
     private static final String TOUCHSCREEN_GESTURE_TITLE = KEY_TOUCHSCREEN_GESTURE + "_%s_title";
 
+    // Gesture id -> enabled state last written to the hardware by this process
+    private static final SparseBooleanArray sAppliedStates = new SparseBooleanArray();
+
     private TouchscreenGesture[] mTouchscreenGestures;
 
     @Override
@@ -89,7 +93,7 @@ public class TouchscreenGestureSettings extends SettingsPreferenceFragment {
         public boolean callChangeListener(final Object newValue) {
             final int action = Integer.parseInt(String.valueOf(newValue));
             final MKHardwareManager manager = MKHardwareManager.getInstance(mContext);
-            if (!manager.setTouchscreenGestureEnabled(mGesture, action > 0)) {
+            if (!setTouchscreenGestureEnabled(manager, mGesture, action > 0)) {
                 return false;
             }
             return super.callChangeListener(newValue);
@@ -146,10 +150,31 @@ public class TouchscreenGestureSettings extends SettingsPreferenceFragment {
         final TouchscreenGesture[] gestures = manager.getTouchscreenGestures();
         final int[] actionList = buildActionList(context, gestures);
         for (final TouchscreenGesture gesture : gestures) {
-            manager.setTouchscreenGestureEnabled(gesture, actionList[gesture.id] > 0);
+            setTouchscreenGestureEnabled(manager, gesture, actionList[gesture.id] > 0);
         }
 
-        sendUpdateBroadcast(context, gestures);
+        sendUpdateBroadcast(context, gestures, actionList);
+    }
+
+    /**
+     * Enable or disable a gesture in the hardware, skipping the call when the gesture
+     * is already in the requested state
+     */
+    private static boolean setTouchscreenGestureEnabled(final MKHardwareManager manager,
+            final TouchscreenGesture gesture, final boolean enabled) {
+        synchronized (sAppliedStates) {
+            final int index = sAppliedStates.indexOfKey(gesture.id);
+            if (index >= 0 && sAppliedStates.valueAt(index) == enabled) {
+                return true;
+            }
+            if (!manager.setTouchscreenGestureEnabled(gesture, enabled)) {
+                // The hardware state is unknown now, write it again next time
+                sAppliedStates.delete(gesture.id);
+                return false;
+            }
+            sAppliedStates.put(gesture.id, enabled);
+            return true;
+        }
     }
 
     private static boolean isTouchscreenGesturesSupported(final Context context) {
@@ -189,9 +214,13 @@ public class TouchscreenGestureSettings extends SettingsPreferenceFragment {
 
     private static void sendUpdateBroadcast(final Context context,
             final TouchscreenGesture[] gestures) {
+        sendUpdateBroadcast(context, gestures, buildActionList(context, gestures));
+    }
+
+    private static void sendUpdateBroadcast(final Context context,
+            final TouchscreenGesture[] gestures, final int[] actions) {
         final Intent intent = new Intent(TouchscreenGestureConstants.UPDATE_PREFS_ACTION);
         final int[] keycodes = new int[gestures.length];
-        final int[] actions = buildActionList(context, gestures);
         for (final TouchscreenGesture gesture : gestures) {
             keycodes[gesture.id] = gesture.keycode;
         }
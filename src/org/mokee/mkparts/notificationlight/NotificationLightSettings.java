@@ -44,6 +44,7 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 
 import org.mokee.internal.notification.LightsCapabilities;
+import org.mokee.mkparts.utils.AppInfoCache;
 import org.mokee.mkparts.widget.PackageListAdapter;
 import org.mokee.mkparts.widget.PackageListAdapter.PackageItem;
 import org.mokee.mkparts.R;
@@ -290,6 +291,7 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         // Add the Application Preferences
         if (mApplicationPrefList != null) {
             mApplicationPrefList.removeAll();
+            final AppInfoCache appInfoCache = AppInfoCache.getInstance(context);
 
             for (Package pkg : mPackages.values()) {
                 try {
@@ -300,8 +302,8 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
                                     pkg.color, pkg.timeon, pkg.timeoff);
 
                     pref.setKey(pkg.name);
-                    pref.setTitle(info.applicationInfo.loadLabel(mPackageManager));
-                    pref.setIcon(info.applicationInfo.loadIcon(mPackageManager));
+                    pref.setTitle(appInfoCache.getLabel(info));
+                    pref.setIcon(appInfoCache.getIcon(info));
                     pref.setPersistent(false);
                     pref.setOnPreferenceChangeListener(this);
                     pref.setOnLongClickListener(this);
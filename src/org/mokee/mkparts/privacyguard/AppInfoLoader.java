@@ -18,44 +18,187 @@ package org.mokee.mkparts.privacyguard;
 
 import android.app.AppOpsManager;
 import android.content.AsyncTaskLoader;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageInfo;
+import android.net.Uri;
 
 import org.mokee.mkparts.privacyguard.PrivacyGuardManager.AppInfo;
+import org.mokee.mkparts.utils.AppInfoCache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * An asynchronous loader implementation that loads AppInfo structures.
+ * <p>
+ * The installed apps are only queried on the first load. After that the loader keeps
+ * its list and patches it: packages that were added, removed or changed since the last
+ * load are removed and inserted back at their sorted position, and the changes are
+ * delivered along with the list so the adapter can update itself in place.
  */
-/* package */ class AppInfoLoader extends AsyncTaskLoader<List<AppInfo>> {
+/* package */ class AppInfoLoader extends AsyncTaskLoader<AppInfoLoader.Result> {
     private PackageManager mPm;
+    private AppInfoCache mAppInfoCache;
     private boolean mShowSystemApps;
     private AppOpsManager mAppOps;
     private static final String[] BLACKLISTED_PACKAGES = {
             "com.android.systemui"
     };
 
+    // The ops AppOpsManager.getPrivacyGuardSettingForPackage() looks at
+    private static final int[] PRIVACY_GUARD_OPS = {
+            AppOpsManager.OP_COARSE_LOCATION,
+            AppOpsManager.OP_READ_CALL_LOG,
+            AppOpsManager.OP_READ_CONTACTS,
+            AppOpsManager.OP_READ_CALENDAR,
+            AppOpsManager.OP_READ_SMS
+    };
+
+    // sort the apps by their enabled state, then by title
+    private static final Comparator<AppInfo> APP_COMPARATOR = new Comparator<AppInfo>() {
+        @Override
+        public int compare(AppInfo lhs, AppInfo rhs) {
+            if (lhs.enabled != rhs.enabled) {
+                return lhs.enabled ? -1 : 1;
+            }
+            return lhs.title.compareToIgnoreCase(rhs.title);
+        }
+    };
+
+    /**
+     * A row removed from or inserted into the list, in the order they were applied
+     */
+    public static final class Change {
+        public final boolean inserted;
+        public final int index;
+        public final AppInfo app;
+
+        Change(boolean inserted, int index, AppInfo app) {
+            this.inserted = inserted;
+            this.index = index;
+            this.app = app;
+        }
+    }
+
+    public static final class Result {
+        // The complete, sorted list of apps
+        public final List<AppInfo> apps;
+        // The list the changes were applied to, null for a full load
+        public final List<AppInfo> base;
+        public final List<Change> changes;
+
+        Result(List<AppInfo> apps, List<AppInfo> base, List<Change> changes) {
+            this.apps = apps;
+            this.base = base;
+            this.changes = changes;
+        }
+    }
+
+    // Only accessed from loadInBackground, which never runs concurrently
+    private List<AppInfo> mApps;
+
+    private final Set<String> mChangedPackages = new HashSet<String>();
+    private boolean mRefreshStates;
+
+    private Result mResult;
+    private BroadcastReceiver mPackageReceiver;
+
     public AppInfoLoader(Context context, boolean showSystemApps) {
         super(context);
         mPm = context.getPackageManager();
+        mAppInfoCache = AppInfoCache.getInstance(context);
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
         mShowSystemApps = showSystemApps;
     }
 
+    /**
+     * Read the privacy guard state of the loaded apps again
+     */
+    public void refreshStates() {
+        synchronized (mChangedPackages) {
+            mRefreshStates = true;
+        }
+        onContentChanged();
+    }
+
+    @Override
+    public Result loadInBackground() {
+        final Set<String> changedPackages;
+        final boolean refreshStates;
+        synchronized (mChangedPackages) {
+            changedPackages = new HashSet<String>(mChangedPackages);
+            mChangedPackages.clear();
+            refreshStates = mRefreshStates;
+            mRefreshStates = false;
+        }
+
+        if (mApps == null) {
+            mApps = loadInstalledApps();
+            return new Result(mApps, null, null);
+        }
+
+        final List<AppInfo> base = mApps;
+        final List<AppInfo> apps = new ArrayList<AppInfo>(base);
+        final List<Change> changes = new ArrayList<Change>();
+        for (String packageName : changedPackages) {
+            updatePackage(apps, packageName, changes);
+        }
+        if (refreshStates) {
+            updateStates(apps, changes);
+        }
+        mApps = apps;
+        return new Result(apps, base, changes);
+    }
+
     @Override
-    public List<AppInfo> loadInBackground() {
-        return loadInstalledApps();
+    public void deliverResult(Result result) {
+        mResult = result;
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
     }
 
     @Override
     public void onStartLoading() {
-        forceLoad();
+        if (mPackageReceiver == null) {
+            mPackageReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    final Uri data = intent.getData();
+                    if (data == null) {
+                        return;
+                    }
+                    synchronized (mChangedPackages) {
+                        mChangedPackages.add(data.getSchemeSpecificPart());
+                    }
+                    onContentChanged();
+                }
+            };
+            final IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addDataScheme("package");
+            getContext().registerReceiver(mPackageReceiver, filter);
+        }
+
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
     }
 
     @Override
@@ -66,6 +209,11 @@ import java.util.List;
     @Override
     protected void onReset() {
         cancelLoad();
+        if (mPackageReceiver != null) {
+            getContext().unregisterReceiver(mPackageReceiver);
+            mPackageReceiver = null;
+        }
+        mResult = null;
     }
 
     private boolean isBlacklisted(String packageName) {
@@ -85,41 +233,173 @@ import java.util.List;
     */
     private List<AppInfo> loadInstalledApps() {
         List<AppInfo> apps = new ArrayList<AppInfo>();
-        List<PackageInfo> packages = mPm.getInstalledPackages(
-            PackageManager.GET_PERMISSIONS | PackageManager.GET_SIGNATURES);
+        // Nothing but the application info is used, so don't pull anything else
+        List<PackageInfo> packages = mPm.getInstalledPackages(0);
+        PrivacyGuardStates states = new PrivacyGuardStates();
 
         for (PackageInfo info : packages) {
-            final ApplicationInfo appInfo = info.applicationInfo;
+            AppInfo app = createAppInfo(info, states);
+            if (app != null) {
+                apps.add(app);
+            }
+        }
+
+        Collections.sort(apps, APP_COMPARATOR);
 
-            // skip all system apps if they shall not be included
-            if ((!mShowSystemApps && (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0)
-                    || (appInfo.uid == android.os.Process.SYSTEM_UID)
-                    || isBlacklisted(appInfo.packageName)) {
-                continue;
+        return apps;
+    }
+
+    private void updatePackage(List<AppInfo> apps, String packageName, List<Change> changes) {
+        for (int i = 0; i < apps.size(); i++) {
+            if (apps.get(i).packageName.equals(packageName)) {
+                apps.remove(i);
+                changes.add(new Change(false, i, null));
+                break;
+            }
+        }
+
+        final AppInfo app;
+        try {
+            app = createAppInfo(mPm.getPackageInfo(packageName, 0), null);
+        } catch (PackageManager.NameNotFoundException e) {
+            // removed
+            return;
+        }
+        if (app == null) {
+            return;
+        }
+
+        int index = Collections.binarySearch(apps, app, APP_COMPARATOR);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        apps.add(index, app);
+        changes.add(new Change(true, index, app));
+    }
+
+    private void updateStates(List<AppInfo> apps, List<Change> changes) {
+        final PrivacyGuardStates states = new PrivacyGuardStates();
+        for (int i = 0; i < apps.size(); i++) {
+            final AppInfo app = apps.get(i);
+            final boolean privacyGuardEnabled = states.isEnabled(app.uid, app.packageName);
+            if (privacyGuardEnabled != app.privacyGuardEnabled) {
+                // Replace the row, the AppInfo of the current one may be in use
+                final AppInfo updated = copyAppInfo(app);
+                updated.privacyGuardEnabled = privacyGuardEnabled;
+                apps.set(i, updated);
+                changes.add(new Change(false, i, null));
+                changes.add(new Change(true, i, updated));
+            }
+        }
+    }
+
+    /**
+     * @param states the privacy guard states of all the apps, or null to query them
+     * @return the AppInfo of the package, or null if it must not be listed
+     */
+    private AppInfo createAppInfo(PackageInfo info, PrivacyGuardStates states) {
+        final ApplicationInfo appInfo = info.applicationInfo;
+
+        // skip all system apps if they shall not be included
+        if ((!mShowSystemApps && (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0)
+                || (appInfo.uid == android.os.Process.SYSTEM_UID)
+                || isBlacklisted(appInfo.packageName)) {
+            return null;
+        }
+
+        AppInfo app = new AppInfo();
+        app.title = mAppInfoCache.getLabel(info).toString();
+        app.packageName = info.packageName;
+        app.enabled = appInfo.enabled;
+        app.uid = info.applicationInfo.uid;
+        app.applicationInfo = appInfo;
+        app.lastUpdateTime = info.lastUpdateTime;
+        app.privacyGuardEnabled = states != null
+                ? states.isEnabled(app.uid, app.packageName)
+                : mAppOps.getPrivacyGuardSettingForPackage(app.uid, app.packageName);
+        return app;
+    }
+
+    /**
+     * Privacy guard state of every app, read from app ops with a single query rather than
+     * asking for every app in turn. Privacy guard is on for an app when any of its ops is
+     * set to ask, like AppOpsManager.getPrivacyGuardSettingForPackage() decides.
+     */
+    private final class PrivacyGuardStates {
+        private final Set<String> mEnabled = new HashSet<String>();
+        private final Set<String> mKnown = new HashSet<String>();
+        private final boolean mDefaultEnabled;
+
+        PrivacyGuardStates() {
+            // Apps without any mode set use the defaults of the ops
+            boolean defaultEnabled = false;
+            for (int op : PRIVACY_GUARD_OPS) {
+                defaultEnabled |= isAsk(AppOpsManager.opToDefaultMode(op));
+            }
+            mDefaultEnabled = defaultEnabled;
+
+            final List<AppOpsManager.PackageOps> packages =
+                    mAppOps.getPackagesForOps(PRIVACY_GUARD_OPS);
+            if (packages == null) {
+                return;
             }
+            final boolean[] set = new boolean[PRIVACY_GUARD_OPS.length];
+            for (AppOpsManager.PackageOps pkg : packages) {
+                boolean enabled = false;
+                Arrays.fill(set, false);
+                for (AppOpsManager.OpEntry entry : pkg.getOps()) {
+                    final int index = indexOf(entry.getOp());
+                    if (index >= 0) {
+                        set[index] = true;
+                        enabled |= isAsk(entry.getMode());
+                    }
+                }
+                for (int i = 0; i < set.length; i++) {
+                    if (!set[i]) {
+                        enabled |= isAsk(AppOpsManager.opToDefaultMode(PRIVACY_GUARD_OPS[i]));
+                    }
+                }
 
-            AppInfo app = new AppInfo();
-            app.title = appInfo.loadLabel(mPm).toString();
-            app.packageName = info.packageName;
-            app.enabled = appInfo.enabled;
-            app.uid = info.applicationInfo.uid;
-            app.privacyGuardEnabled = mAppOps.getPrivacyGuardSettingForPackage(
-                    app.uid, app.packageName);
-            apps.add(app);
-        }
-
-        // sort the apps by their enabled state, then by title
-        Collections.sort(apps, new Comparator<AppInfo>() {
-            @Override
-            public int compare(AppInfo lhs, AppInfo rhs) {
-                if (lhs.enabled != rhs.enabled) {
-                    return lhs.enabled ? -1 : 1;
+                final String key = getKey(pkg.getUid(), pkg.getPackageName());
+                mKnown.add(key);
+                if (enabled) {
+                    mEnabled.add(key);
                 }
-                return lhs.title.compareToIgnoreCase(rhs.title);
             }
-        });
+        }
 
-        return apps;
+        boolean isEnabled(int uid, String packageName) {
+            final String key = getKey(uid, packageName);
+            return mKnown.contains(key) ? mEnabled.contains(key) : mDefaultEnabled;
+        }
+
+        private String getKey(int uid, String packageName) {
+            return uid + ":" + packageName;
+        }
+
+        private int indexOf(int op) {
+            for (int i = 0; i < PRIVACY_GUARD_OPS.length; i++) {
+                if (PRIVACY_GUARD_OPS[i] == op) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isAsk(int mode) {
+            return mode != AppOpsManager.MODE_ALLOWED && mode != AppOpsManager.MODE_IGNORED;
+        }
     }
 
+    private static AppInfo copyAppInfo(AppInfo app) {
+        AppInfo copy = new AppInfo();
+        copy.title = app.title;
+        copy.packageName = app.packageName;
+        copy.enabled = app.enabled;
+        copy.privacyGuardEnabled = app.privacyGuardEnabled;
+        copy.uid = app.uid;
+        copy.applicationInfo = app.applicationInfo;
+        copy.lastUpdateTime = app.lastUpdateTime;
+        return copy;
+    }
 }
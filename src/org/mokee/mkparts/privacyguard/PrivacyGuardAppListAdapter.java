@@ -19,9 +19,15 @@
 package org.mokee.mkparts.privacyguard;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -32,43 +38,61 @@ import android.widget.TextView;
 
 import org.mokee.mkparts.R;
 import org.mokee.mkparts.privacyguard.PrivacyGuardManager.AppInfo;
+import org.mokee.mkparts.utils.AppInfoCache;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIndexer {
 
+    private static final int ROW_ICON_CACHE_SIZE = 128;
+    // Replaced icon requests tolerated in the queue before it is compacted
+    private static final int MAX_STALE_ICON_REQUESTS = 32;
+
     private LayoutInflater mInflater;
-    private PackageManager mPm;
 
     private List<AppInfo> mApps;
     private String[] mSections;
     private int[] mPositions;
-    private ConcurrentHashMap<String, Drawable> mIcons;
+    private AppInfoCache mAppInfoCache;
     private Drawable mDefaultImg;
 
+    // Icons scaled down to the size of the rows, by package name and update time, so
+    // an updated package doesn't keep the icon of its previous version
+    private LruCache<String, Drawable> mRowIcons;
+    private int mIconSize;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Rows waiting for their icon, by holder; a rebound holder replaces its request
+    private final HashMap<PrivacyGuardAppViewHolder, AppInfo> mPendingIcons =
+            new HashMap<PrivacyGuardAppViewHolder, AppInfo>();
+    // The same holders, most recently bound first. Requests that were replaced or
+    // cancelled are left behind and skipped when reached.
+    private final ArrayDeque<PrivacyGuardAppViewHolder> mIconQueue =
+            new ArrayDeque<PrivacyGuardAppViewHolder>();
+    private boolean mIconLoaderRunning;
+
     private Context mContext;
 
     //constructor
-    public PrivacyGuardAppListAdapter(Context context, List<AppInfo> apps,
-            List<String> sections, List<Integer> positions) {
+    public PrivacyGuardAppListAdapter(Context context, List<AppInfo> apps) {
         mContext = context;
         mInflater = LayoutInflater.from(mContext);
-        mPm = context.getPackageManager();
 
         mApps = apps;
-        mSections = sections.toArray(new String[sections.size()]);
-        mPositions = new int[positions.size()];
-        for (int i = 0; i < positions.size(); i++) {
-            mPositions[i] = positions.get(i);
-        }
+        buildSections();
 
-        // set the default icon till the actual app icon is loaded in async task
+        // set the default icon till the actual app icon is loaded in the background
         mDefaultImg = mContext.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
-        mIcons = new ConcurrentHashMap<String, Drawable>();
+        mAppInfoCache = AppInfoCache.getInstance(context);
 
-        new LoadIconsTask().execute(apps.toArray(new PrivacyGuardManager.AppInfo[]{}));
+        mIconSize = mContext.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+        mRowIcons = new LruCache<String, Drawable>(ROW_ICON_CACHE_SIZE);
     }
 
     @Override
@@ -107,8 +131,15 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
 
         appHolder.title.setText(app.title);
 
-        Drawable icon = mIcons.get(app.packageName);
-        appHolder.icon.setImageDrawable(icon != null ? icon : mDefaultImg);
+        appHolder.app = app;
+        Drawable icon = mRowIcons.get(getIconKey(app));
+        if (icon != null) {
+            cancelIcon(appHolder);
+            appHolder.icon.setImageDrawable(icon);
+        } else {
+            appHolder.icon.setImageDrawable(mDefaultImg);
+            requestIcon(appHolder, app);
+        }
 
         int privacyGuardDrawableResId = app.privacyGuardEnabled
                 ? R.drawable.ic_privacy_guard_on :
@@ -152,34 +183,242 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
     }
 
     /**
-     * An asynchronous task to load the icons of the installed applications.
+     * Update the list after the loader patched it
+     *
+     * @param changes the rows removed and inserted, relative to the current list
+     * @param apps the list after all the changes
      */
-    private class LoadIconsTask extends AsyncTask<PrivacyGuardManager.AppInfo, Void, Void> {
-        @Override
-        protected Void doInBackground(PrivacyGuardManager.AppInfo... apps) {
-            for (PrivacyGuardManager.AppInfo app : apps) {
-                try {
-                    Drawable icon = mPm.getApplicationIcon(app.packageName);
-                    mIcons.put(app.packageName, icon);
-                    publishProgress();
-                } catch (PackageManager.NameNotFoundException e) {
-                    // ignored; app will show up with default image
-                }
+    public void applyChanges(List<AppInfoLoader.Change> changes, List<AppInfo> apps) {
+        final List<AppInfo> working = new ArrayList<AppInfo>(mApps);
+        for (AppInfoLoader.Change change : changes) {
+            if (change.inserted) {
+                insertRow(working, change.index, change.app);
+            } else {
+                removeRow(working, change.index);
+            }
+        }
+        mApps = apps;
+        notifyDataSetChanged();
+    }
+
+    private void buildSections() {
+        String lastSectionIndex = null;
+        ArrayList<String> sections = new ArrayList<String>();
+        ArrayList<Integer> positions = new ArrayList<Integer>();
+        int count = mApps.size();
+
+        for (int i = 0; i < count; i++) {
+            String sectionIndex = getSectionIndex(mApps.get(i));
+
+            if (lastSectionIndex == null ||
+                    !TextUtils.equals(sectionIndex, lastSectionIndex)) {
+                sections.add(sectionIndex);
+                positions.add(i);
+                lastSectionIndex = sectionIndex;
             }
+        }
+
+        mSections = sections.toArray(new String[sections.size()]);
+        mPositions = new int[positions.size()];
+        for (int i = 0; i < positions.size(); i++) {
+            mPositions[i] = positions.get(i);
+        }
+    }
+
+    private static String getSectionIndex(AppInfo app) {
+        if (!app.enabled) {
+            return "--"; //XXX
+        } else if (app.title.isEmpty()) {
+            return "";
+        } else {
+            return app.title.substring(0, 1).toUpperCase();
+        }
+    }
 
-            return null;
+    private int findSection(int position) {
+        int index = Arrays.binarySearch(mPositions, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private void removeRow(List<AppInfo> apps, int index) {
+        final int section = findSection(index);
+        apps.remove(index);
+        for (int i = section + 1; i < mPositions.length; i++) {
+            mPositions[i]--;
         }
+        final int end = section + 1 < mPositions.length ? mPositions[section + 1] : apps.size();
+        if (mPositions[section] == end) {
+            deleteSection(section);
+        }
+    }
 
+    private void insertRow(List<AppInfo> apps, int index, AppInfo app) {
+        final String key = getSectionIndex(app);
+        final int previous = index > 0 ? findSection(index - 1) : -1;
+        final int next = previous + 1;
+
+        if (previous >= 0 && TextUtils.equals(mSections[previous], key)) {
+            // Grows the section of the row before
+            shiftSections(next);
+        } else if (next < mPositions.length && mPositions[next] == index
+                && TextUtils.equals(mSections[next], key)) {
+            // Grows the section of the row after, which keeps starting here
+            shiftSections(next + 1);
+        } else {
+            final boolean split = previous >= 0 && index < apps.size()
+                    && (next >= mPositions.length || mPositions[next] > index);
+            shiftSections(next);
+            addSection(next, key, index);
+            if (split) {
+                // Landed in the middle of another section, the rest of it starts after
+                addSection(next + 1, mSections[previous], index + 1);
+            }
+        }
+        apps.add(index, app);
+    }
+
+    private void shiftSections(int from) {
+        for (int i = from; i < mPositions.length; i++) {
+            mPositions[i]++;
+        }
+    }
+
+    private void addSection(int section, String key, int position) {
+        final String[] sections = new String[mSections.length + 1];
+        final int[] positions = new int[mPositions.length + 1];
+        System.arraycopy(mSections, 0, sections, 0, section);
+        System.arraycopy(mPositions, 0, positions, 0, section);
+        sections[section] = key;
+        positions[section] = position;
+        System.arraycopy(mSections, section, sections, section + 1, mSections.length - section);
+        System.arraycopy(mPositions, section, positions, section + 1,
+                mPositions.length - section);
+        mSections = sections;
+        mPositions = positions;
+    }
+
+    private void deleteSection(int section) {
+        final String[] sections = new String[mSections.length - 1];
+        final int[] positions = new int[mPositions.length - 1];
+        System.arraycopy(mSections, 0, sections, 0, section);
+        System.arraycopy(mPositions, 0, positions, 0, section);
+        System.arraycopy(mSections, section + 1, sections, section,
+                mSections.length - section - 1);
+        System.arraycopy(mPositions, section + 1, positions, section,
+                mPositions.length - section - 1);
+        mSections = sections;
+        mPositions = positions;
+    }
+
+    private void requestIcon(PrivacyGuardAppViewHolder holder, AppInfo app) {
+        synchronized (mPendingIcons) {
+            // The latest bound rows (the visible ones) are served first
+            mPendingIcons.put(holder, app);
+            mIconQueue.push(holder);
+            if (mIconQueue.size() > 2 * mPendingIcons.size() + MAX_STALE_ICON_REQUESTS) {
+                compactIconQueue();
+            }
+            if (!mIconLoaderRunning) {
+                mIconLoaderRunning = true;
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(mIconLoader);
+            }
+        }
+    }
+
+    private void cancelIcon(PrivacyGuardAppViewHolder holder) {
+        synchronized (mPendingIcons) {
+            mPendingIcons.remove(holder);
+        }
+    }
+
+    private void compactIconQueue() {
+        // Keep the most recent request of every holder still waiting, in order
+        final HashSet<PrivacyGuardAppViewHolder> seen = new HashSet<PrivacyGuardAppViewHolder>();
+        final Iterator<PrivacyGuardAppViewHolder> it = mIconQueue.iterator();
+        while (it.hasNext()) {
+            final PrivacyGuardAppViewHolder holder = it.next();
+            if (!mPendingIcons.containsKey(holder) || !seen.add(holder)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Loads the icons of the rows waiting for one, most recently bound first,
+     * and binds every icon to its row only.
+     */
+    private final Runnable mIconLoader = new Runnable() {
         @Override
-        protected void onProgressUpdate(Void... progress) {
-            notifyDataSetChanged();
+        public void run() {
+            while (true) {
+                PrivacyGuardAppViewHolder holder;
+                AppInfo app;
+                synchronized (mPendingIcons) {
+                    do {
+                        holder = mIconQueue.poll();
+                        if (holder == null) {
+                            mPendingIcons.clear();
+                            mIconLoaderRunning = false;
+                            return;
+                        }
+                        app = mPendingIcons.remove(holder);
+                    } while (app == null);
+                }
+                final PrivacyGuardAppViewHolder boundHolder = holder;
+                final AppInfo boundApp = app;
+
+                Drawable icon = mRowIcons.get(getIconKey(app));
+                if (icon == null) {
+                    icon = scaleIcon(mAppInfoCache.getIcon(app.applicationInfo,
+                            app.lastUpdateTime));
+                    mRowIcons.put(getIconKey(app), icon);
+                }
+
+                final Drawable rowIcon = icon;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The row may have been recycled for another app meanwhile
+                        if (boundHolder.app == boundApp) {
+                            boundHolder.icon.setImageDrawable(rowIcon);
+                        }
+                    }
+                });
+            }
+        }
+    };
+
+    private static String getIconKey(AppInfo app) {
+        return app.packageName + ":" + app.lastUpdateTime;
+    }
+
+    private Drawable scaleIcon(Drawable icon) {
+        final int width = icon.getIntrinsicWidth();
+        final int height = icon.getIntrinsicHeight();
+        if (width > 0 && width <= mIconSize && height > 0 && height <= mIconSize) {
+            return icon;
+        }
+        // Scale uniformly, so non-square icons keep their aspect ratio
+        int scaledWidth = mIconSize;
+        int scaledHeight = mIconSize;
+        if (width > 0 && height > 0) {
+            final float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+            scaledWidth = Math.max(1, Math.round(width * scale));
+            scaledHeight = Math.max(1, Math.round(height * scale));
         }
+        final Bitmap bitmap = Bitmap.createBitmap(scaledWidth, scaledHeight,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, scaledWidth, scaledHeight);
+        icon.draw(canvas);
+        return new BitmapDrawable(mContext.getResources(), bitmap);
     }
 
     /**
      * App view holder used to reuse the views inside the list.
      */
     public static class PrivacyGuardAppViewHolder {
+        AppInfo app;
         TextView title;
         ImageView icon;
         ImageView privacyGuardIcon;
@@ -23,20 +23,18 @@ import android.app.FragmentTransaction;
 import android.view.animation.AnimationUtils;
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.AppOpsManager;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
 import android.app.LoaderManager;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Settings;
-import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -54,12 +52,11 @@ import mokee.providers.MKSettings;
 import org.mokee.mkparts.R;
 import org.mokee.mkparts.SettingsPreferenceFragment;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class PrivacyGuardManager extends SettingsPreferenceFragment
         implements OnItemClickListener, OnItemLongClickListener,
-                   LoaderManager.LoaderCallbacks<List<PrivacyGuardManager.AppInfo>> {
+                   LoaderManager.LoaderCallbacks<AppInfoLoader.Result> {
 
     private static final String TAG = "PrivacyGuardManager";
 
@@ -72,7 +69,7 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
     private Activity mActivity;
 
     private SharedPreferences mPreferences;
-    private AppOpsManager mAppOps;
+    private PrivacyGuardUpdater mUpdater;
 
     private int mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
     private int mSavedFirstItemOffset;
@@ -91,13 +88,20 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
         boolean enabled;
         boolean privacyGuardEnabled;
         int uid;
+        ApplicationInfo applicationInfo;
+        long lastUpdateTime;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mUpdater = new PrivacyGuardUpdater(getActivity());
     }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
         mActivity = getActivity();
-        mAppOps = (AppOpsManager)getActivity().getSystemService(Context.APP_OPS_SERVICE);
 
         View hostView = inflater.inflate(R.layout.privacy_guard_manager, container, false);
 
@@ -137,7 +141,7 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
         }
 
         // load apps and construct the list
-        scheduleAppsLoad();
+        getLoaderManager().initLoader(0, null, this);
 
         setHasOptionsMenu(true);
     }
@@ -165,18 +169,36 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
         mSavedFirstVisiblePosition = mAppsList.getFirstVisiblePosition();
         View firstChild = mAppsList.getChildAt(0);
         mSavedFirstItemOffset = (firstChild == null) ? 0 : firstChild.getTop();
+
+        // don't keep the changes pending while the user is away
+        mUpdater.flush(null);
     }
 
     @Override
     public void onResume() {
         super.onResume();
 
-        // rebuild the list; the user might have changed settings inbetween
-        scheduleAppsLoad();
+        // update the list; the user might have changed settings inbetween, but only
+        // once our own changes are written so they don't get reverted
+        mUpdater.flush(new Runnable() {
+            @Override
+            public void run() {
+                final Loader<AppInfoLoader.Result> loader = getLoaderManager().getLoader(0);
+                if (isResumed() && loader != null && mApps != null) {
+                    ((AppInfoLoader) loader).refreshStates();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mUpdater.release();
     }
 
     @Override
-    public Loader<List<AppInfo>> onCreateLoader(int id, Bundle args) {
+    public Loader<AppInfoLoader.Result> onCreateLoader(int id, Bundle args) {
         mLoadingContainer.startAnimation(AnimationUtils.loadAnimation(
               mActivity, android.R.anim.fade_in));
         mAppsList.startAnimation(AnimationUtils.loadAnimation(
@@ -188,8 +210,20 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
     }
 
     @Override
-    public void onLoadFinished(Loader<List<AppInfo>> loader, List<AppInfo> apps) {
-        mApps = apps;
+    public void onLoadFinished(Loader<AppInfoLoader.Result> loader, AppInfoLoader.Result result) {
+        if (mAdapter != null && result.apps == mApps) {
+            // Delivered again, already shown
+            return;
+        }
+        if (mAdapter != null && result.base != null && result.base == mApps
+                && !result.apps.isEmpty()) {
+            // Patch the list in place, keeping its scroll position and loaded icons
+            mApps = result.apps;
+            mAdapter.applyChanges(result.changes, result.apps);
+            return;
+        }
+
+        mApps = result.apps;
         prepareAppAdapter();
 
         mLoadingContainer.startAnimation(AnimationUtils.loadAnimation(
@@ -207,7 +241,7 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
     }
 
     @Override
-    public void onLoaderReset(Loader<List<AppInfo>> loader) {
+    public void onLoaderReset(Loader<AppInfoLoader.Result> loader) {
     }
 
     private void scheduleAppsLoad() {
@@ -222,45 +256,16 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
             mNoUserAppsInstalled.setVisibility(View.VISIBLE);
             mAppsList.setVisibility(View.GONE);
             mAppsList.setAdapter(null);
+            mAdapter = null;
         } else {
             mNoUserAppsInstalled.setVisibility(View.GONE);
             mAppsList.setVisibility(View.VISIBLE);
-            mAdapter = createAdapter();
+            mAdapter = new PrivacyGuardAppListAdapter(mActivity, mApps);
             mAppsList.setAdapter(mAdapter);
             mAppsList.setFastScrollEnabled(true);
         }
     }
 
-    private PrivacyGuardAppListAdapter createAdapter() {
-        String lastSectionIndex = null;
-        ArrayList<String> sections = new ArrayList<String>();
-        ArrayList<Integer> positions = new ArrayList<Integer>();
-        int count = mApps.size(), offset = 0;
-
-        for (int i = 0; i < count; i++) {
-            AppInfo app = mApps.get(i);
-            String sectionIndex;
-
-            if (!app.enabled) {
-                sectionIndex = "--"; //XXX
-            } else if (app.title.isEmpty()) {
-                sectionIndex = "";
-            } else {
-                sectionIndex = app.title.substring(0, 1).toUpperCase();
-            }
-
-            if (lastSectionIndex == null ||
-                    !TextUtils.equals(sectionIndex, lastSectionIndex)) {
-                sections.add(sectionIndex);
-                positions.add(offset);
-                lastSectionIndex = sectionIndex;
-            }
-            offset++;
-        }
-
-        return new PrivacyGuardAppListAdapter(mActivity, mApps, sections, positions);
-    }
-
     private void resetPrivacyGuard() {
         if (mApps == null || mApps.isEmpty()) {
             return;
@@ -274,7 +279,7 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
         final AppInfo app = (AppInfo) parent.getItemAtPosition(position);
 
         app.privacyGuardEnabled = !app.privacyGuardEnabled;
-        mAppOps.setPrivacyGuardSettingForPackage(app.uid, app.packageName, app.privacyGuardEnabled);
+        mUpdater.setPrivacyGuardEnabled(app.uid, app.packageName, app.privacyGuardEnabled);
 
         mAdapter.notifyDataSetChanged();
     }
@@ -354,7 +359,7 @@ public class PrivacyGuardManager extends SettingsPreferenceFragment
         for (AppInfo app : mApps) {
             app.privacyGuardEnabled = false;
         }
-        mAppOps.resetAllModes();
+        mUpdater.resetAll();
         mAdapter.notifyDataSetChanged();
     }
 
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mokee.mkparts.privacyguard;
+
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Writes the privacy guard changes made in the list to app ops in the background.
+ * <p>
+ * The list shows a change right away; the changes are collected for a short while and
+ * then written together, keeping only the last one of every app, so toggling apps never
+ * waits for app ops on the main thread. Resetting drops the pending changes and resets
+ * all the modes with a single call.
+ */
+/* package */ class PrivacyGuardUpdater {
+
+    // How long changes are collected before being written
+    private static final int BATCH_DELAY = 300;
+
+    private static final class Update {
+        final int uid;
+        final String packageName;
+        final boolean enabled;
+
+        Update(int uid, String packageName, boolean enabled) {
+            this.uid = uid;
+            this.packageName = packageName;
+            this.enabled = enabled;
+        }
+    }
+
+    private final AppOpsManager mAppOps;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by itself
+    private final LinkedHashMap<String, Update> mPending = new LinkedHashMap<String, Update>();
+    private boolean mResetPending;
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final boolean reset;
+            final List<Update> updates;
+            synchronized (mPending) {
+                reset = mResetPending;
+                updates = new ArrayList<Update>(mPending.values());
+                mResetPending = false;
+                mPending.clear();
+                mFlushScheduled = false;
+            }
+
+            if (reset) {
+                mAppOps.resetAllModes();
+            }
+            for (Update update : updates) {
+                mAppOps.setPrivacyGuardSettingForPackage(update.uid, update.packageName,
+                        update.enabled);
+            }
+        }
+    };
+
+    public PrivacyGuardUpdater(Context context) {
+        mAppOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        mThread = new HandlerThread("PrivacyGuardUpdater", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void setPrivacyGuardEnabled(int uid, String packageName, boolean enabled) {
+        synchronized (mPending) {
+            mPending.put(uid + ":" + packageName, new Update(uid, packageName, enabled));
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, BATCH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Turn privacy guard off for every app, dropping the changes not written yet
+     */
+    public void resetAll() {
+        synchronized (mPending) {
+            mPending.clear();
+            mResetPending = true;
+        }
+        flush(null);
+    }
+
+    /**
+     * Write the pending changes now
+     *
+     * @param onFlushed run on the main thread once they are written, may be null
+     */
+    public void flush(final Runnable onFlushed) {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+        if (onFlushed != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mMainHandler.post(onFlushed);
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the pending changes and stop the background thread
+     */
+    public void release() {
+        flush(null);
+        mThread.quitSafely();
+    }
+}
@@ -43,6 +43,7 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import org.mokee.mkparts.utils.AppInfoCache;
 import org.mokee.mkparts.widget.PackageListAdapter;
 import org.mokee.mkparts.widget.PackageListAdapter.PackageItem;
 import org.mokee.mkparts.R;
@@ -156,13 +157,14 @@ public class AppGroupConfig extends SettingsPreferenceFragment
         PreferenceGroup applicationsList = (PreferenceGroup) prefSet.findPreference("applications_list");
         if (applicationsList != null) {
             applicationsList.removeAll();
+            final AppInfoCache appInfoCache = AppInfoCache.getInstance(getActivity());
             for (String pkg : mNotificationGroup.getPackages()) {
                 Preference pref = new Preference(getActivity());
                 try {
                     PackageInfo group = mPackageManager.getPackageInfo(pkg, 0);
                     pref.setKey(group.packageName);
-                    pref.setTitle(group.applicationInfo.loadLabel(mPackageManager));
-                    Drawable icon = group.applicationInfo.loadIcon(mPackageManager);
+                    pref.setTitle(appInfoCache.getLabel(group));
+                    Drawable icon = appInfoCache.getIcon(group);
                     pref.setIcon(icon);
                     pref.setSelectable(true);
                     pref.setPersistent(false);
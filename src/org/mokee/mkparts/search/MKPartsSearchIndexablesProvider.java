@@ -22,11 +22,14 @@ import android.provider.SearchIndexablesProvider;
 import android.util.ArraySet;
 import android.util.Log;
 
+import org.mokee.mkparts.BootTaskPipeline;
 import org.mokee.mkparts.search.Searchable.SearchIndexProvider;
 import org.mokee.internal.mkparts.PartInfo;
 import org.mokee.internal.mkparts.PartsList;
 import org.mokee.platform.internal.R;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.util.Collections;
 import java.util.List;
@@ -199,6 +202,13 @@ public class MKPartsSearchIndexablesProvider extends SearchIndexablesProvider {
         return true;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // The provider is the component that is always published while MKParts runs,
+        // so it's where the boot timings are exposed to dumpsys
+        BootTaskPipeline.dump(getContext(), writer);
+    }
+
     private SearchIndexProvider getSearchIndexProvider(final String className) {
 
         final Class<?> clazz;
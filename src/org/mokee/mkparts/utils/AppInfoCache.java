@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2018 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mokee.mkparts.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Process wide cache of application and component labels and icons, so every screen
+ * listing apps doesn't have to load and decode them again from the package manager.
+ * <p>
+ * Entries are keyed by user, package and component, and remember the last update time
+ * of the package when the caller knows it, so a stale entry is never returned for an
+ * updated package. Entries are also dropped when their package changes, and all the
+ * labels are dropped when the locale changes. Icons are bounded by their size in bytes.
+ */
+public class AppInfoCache {
+
+    private static final int MAX_LABELS = 1024;
+    // Share of the heap that can be used by the cached icons
+    private static final int ICON_CACHE_HEAP_DIVIDER = 16;
+
+    private static AppInfoCache sInstance;
+
+    private final PackageManager mPm;
+    private final LruCache<String, Entry<CharSequence>> mLabels;
+    private final LruCache<String, Entry<Drawable.ConstantState>> mIcons;
+
+    private static final class Entry<T> {
+        final String packageName;
+        final long lastUpdateTime;
+        final T value;
+        final int size;
+
+        Entry(String packageName, long lastUpdateTime, T value, int size) {
+            this.packageName = packageName;
+            this.lastUpdateTime = lastUpdateTime;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+                mLabels.evictAll();
+                return;
+            }
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(intent.getAction())) {
+                final String[] packages =
+                        intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packages != null) {
+                    for (String packageName : packages) {
+                        invalidate(packageName);
+                    }
+                }
+                return;
+            }
+            final Uri data = intent.getData();
+            if (data != null) {
+                invalidate(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    public static synchronized AppInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppInfoCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppInfoCache(Context context) {
+        mPm = context.getPackageManager();
+        mLabels = new LruCache<>(MAX_LABELS);
+        mIcons = new LruCache<String, Entry<Drawable.ConstantState>>(
+                (int) (Runtime.getRuntime().maxMemory() / ICON_CACHE_HEAP_DIVIDER)) {
+            @Override
+            protected int sizeOf(String key, Entry<Drawable.ConstantState> entry) {
+                return entry.size;
+            }
+        };
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, packageFilter);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        context.registerReceiver(mPackageReceiver, filter);
+    }
+
+    public CharSequence getLabel(PackageInfo info) {
+        return getLabel(info.applicationInfo, info.lastUpdateTime);
+    }
+
+    public Drawable getIcon(PackageInfo info) {
+        return getIcon(info.applicationInfo, info.lastUpdateTime);
+    }
+
+    /**
+     * @param lastUpdateTime the last update time of the package, 0 if unknown
+     */
+    public CharSequence getLabel(ApplicationInfo info, long lastUpdateTime) {
+        final String key = getKey(info.packageName, null, info.uid);
+        CharSequence label = getLabel(key, lastUpdateTime);
+        if (label == null) {
+            label = info.loadLabel(mPm);
+            putLabel(key, info.packageName, lastUpdateTime, label);
+        }
+        return label;
+    }
+
+    /**
+     * @param lastUpdateTime the last update time of the package, 0 if unknown
+     */
+    public Drawable getIcon(ApplicationInfo info, long lastUpdateTime) {
+        final String key = getKey(info.packageName, null, info.uid);
+        Drawable icon = getIcon(key, lastUpdateTime);
+        if (icon == null) {
+            icon = info.loadIcon(mPm);
+            putIcon(key, info.packageName, lastUpdateTime, icon);
+        }
+        return icon;
+    }
+
+    public CharSequence getLabel(ResolveInfo info) {
+        final ComponentInfo ci = getComponentInfo(info);
+        final String key = getKey(ci.packageName, ci.name, ci.applicationInfo.uid);
+        CharSequence label = getLabel(key, 0);
+        if (label == null) {
+            label = info.loadLabel(mPm);
+            putLabel(key, ci.packageName, 0, label);
+        }
+        return label;
+    }
+
+    public Drawable getIcon(ResolveInfo info) {
+        final ComponentInfo ci = getComponentInfo(info);
+        final String key = getKey(ci.packageName, ci.name, ci.applicationInfo.uid);
+        Drawable icon = getIcon(key, 0);
+        if (icon == null) {
+            icon = info.loadIcon(mPm);
+            putIcon(key, ci.packageName, 0, icon);
+        }
+        return icon;
+    }
+
+    private CharSequence getLabel(String key, long lastUpdateTime) {
+        final Entry<CharSequence> entry = mLabels.get(key);
+        return isValid(entry, lastUpdateTime) ? entry.value : null;
+    }
+
+    private void putLabel(String key, String packageName, long lastUpdateTime,
+            CharSequence label) {
+        mLabels.put(key, new Entry<>(packageName, lastUpdateTime, label, 1));
+    }
+
+    private Drawable getIcon(String key, long lastUpdateTime) {
+        final Entry<Drawable.ConstantState> entry = mIcons.get(key);
+        // Every caller gets its own drawable, sharing the decoded bitmap
+        return isValid(entry, lastUpdateTime) ? entry.value.newDrawable() : null;
+    }
+
+    private void putIcon(String key, String packageName, long lastUpdateTime, Drawable icon) {
+        final Drawable.ConstantState state = icon != null ? icon.getConstantState() : null;
+        if (state != null) {
+            mIcons.put(key, new Entry<>(packageName, lastUpdateTime, state, getByteCount(icon)));
+        }
+    }
+
+    private static boolean isValid(Entry<?> entry, long lastUpdateTime) {
+        return entry != null && (lastUpdateTime == 0 || entry.lastUpdateTime == lastUpdateTime);
+    }
+
+    private void invalidate(String packageName) {
+        for (Map.Entry<String, Entry<CharSequence>> e : mLabels.snapshot().entrySet()) {
+            if (e.getValue().packageName.equals(packageName)) {
+                mLabels.remove(e.getKey());
+            }
+        }
+        for (Map.Entry<String, Entry<Drawable.ConstantState>> e
+                : mIcons.snapshot().entrySet()) {
+            if (e.getValue().packageName.equals(packageName)) {
+                mIcons.remove(e.getKey());
+            }
+        }
+    }
+
+    private static ComponentInfo getComponentInfo(ResolveInfo info) {
+        if (info.activityInfo != null) {
+            return info.activityInfo;
+        }
+        if (info.serviceInfo != null) {
+            return info.serviceInfo;
+        }
+        return info.providerInfo;
+    }
+
+    private static String getKey(String packageName, String component, int uid) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(UserHandle.getUserId(uid)).append(':').append(packageName);
+        if (component != null) {
+            sb.append('/').append(component);
+        }
+        return sb.toString();
+    }
+
+    private static int getByteCount(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getAllocationByteCount();
+            }
+        }
+        // Assume the drawable gets rasterized at its intrinsic size
+        return Math.max(1, icon.getIntrinsicWidth()) * Math.max(1, icon.getIntrinsicHeight()) * 4;
+    }
+}
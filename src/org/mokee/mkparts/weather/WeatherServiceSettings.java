@@ -53,6 +53,7 @@ import com.android.internal.os.BackgroundThread;
 
 import org.mokee.mkparts.R;
 import org.mokee.mkparts.SettingsPreferenceFragment;
+import org.mokee.mkparts.utils.AppInfoCache;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -173,6 +174,7 @@ public class WeatherServiceSettings extends SettingsPreferenceFragment
         List<WeatherProviderServiceInfo> weatherProviderServiceInfos
                 = new ArrayList<>(resolveInfoList.size());
         ComponentName activeService = getEnabledWeatherServiceProvider(context);
+        final AppInfoCache appInfoCache = AppInfoCache.getInstance(context);
         for (ResolveInfo resolveInfo : resolveInfoList) {
             if (resolveInfo.serviceInfo == null) continue;
 
@@ -190,8 +192,8 @@ public class WeatherServiceSettings extends SettingsPreferenceFragment
             serviceInfo.componentName = new ComponentName(resolveInfo.serviceInfo.packageName,
                     resolveInfo.serviceInfo.name);
             serviceInfo.isActive = serviceInfo.componentName.equals(activeService);
-            serviceInfo.caption = resolveInfo.loadLabel(pm);
-            serviceInfo.icon = resolveInfo.loadIcon(pm);
+            serviceInfo.caption = appInfoCache.getLabel(resolveInfo);
+            serviceInfo.icon = appInfoCache.getIcon(resolveInfo);
             serviceInfo.settingsComponentName = getSettingsComponent(pm, resolveInfo);
 
             weatherProviderServiceInfos.add(serviceInfo);
@@ -25,6 +25,7 @@ import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -34,16 +35,22 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import org.mokee.mkparts.R;
+import org.mokee.mkparts.utils.AppInfoCache;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeSet;
 
 public class PackageListAdapter extends BaseAdapter implements Runnable {
     private PackageManager mPm;
+    private AppInfoCache mAppInfoCache;
     private LayoutInflater mInflater;
-    private List<PackageItem> mInstalledPackages = new LinkedList<PackageItem>();
+    // Sorted snapshot published by the loader, only accessed from the main thread
+    private List<PackageItem> mInstalledPackages = new ArrayList<PackageItem>();
+
+    // How often the loader publishes what it has resolved so far
+    private static final long PUBLISH_INTERVAL = 100;
 
     // Packages which don't have launcher icons, but which we want to show nevertheless
     private static final String[] PACKAGE_WHITELIST = new String[] {
@@ -54,14 +61,9 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
 
     private final Handler mHandler = new Handler() {
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
-            PackageItem item = (PackageItem) msg.obj;
-            int index = Collections.binarySearch(mInstalledPackages, item);
-            if (index < 0) {
-                mInstalledPackages.add(-index - 1, item);
-            } else {
-                mInstalledPackages.get(index).activityTitles.addAll(item.activityTitles);
-            }
+            mInstalledPackages = (List<PackageItem>) msg.obj;
             notifyDataSetChanged();
         }
     };
@@ -78,6 +80,11 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
             this.icon = icon;
         }
 
+        private PackageItem(PackageItem item) {
+            this(item.packageName, item.title, item.icon);
+            activityTitles.addAll(item.activityTitles);
+        }
+
         @Override
         public int compareTo(PackageItem another) {
             int result = title.toString().compareToIgnoreCase(another.title.toString());
@@ -87,30 +94,25 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
 
     public PackageListAdapter(Context context) {
         mPm = context.getPackageManager();
+        mAppInfoCache = AppInfoCache.getInstance(context);
         mInflater = LayoutInflater.from(context);
         reloadList();
     }
 
     @Override
     public int getCount() {
-        synchronized (mInstalledPackages) {
-            return mInstalledPackages.size();
-        }
+        return mInstalledPackages.size();
     }
 
     @Override
     public PackageItem getItem(int position) {
-        synchronized (mInstalledPackages) {
-            return mInstalledPackages.get(position);
-        }
+        return mInstalledPackages.get(position);
     }
 
     @Override
     public long getItemId(int position) {
-        synchronized (mInstalledPackages) {
-            // packageName is guaranteed to be unique in mInstalledPackages
-            return mInstalledPackages.get(position).packageName.hashCode();
-        }
+        // packageName is guaranteed to be unique in mInstalledPackages
+        return mInstalledPackages.get(position).packageName.hashCode();
     }
 
     @Override
@@ -149,7 +151,7 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
     }
 
     private void reloadList() {
-        mInstalledPackages.clear();
+        mInstalledPackages = new ArrayList<PackageItem>();
         new Thread(this).start();
     }
 
@@ -159,24 +161,54 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
         List<ResolveInfo> installedAppsInfo = mPm.queryIntentActivities(mainIntent, 0);
 
+        // Items are sorted in here and handed to the main thread in batches, rather
+        // than rebinding the list for every package
+        final ArrayList<PackageItem> packages =
+                new ArrayList<PackageItem>(installedAppsInfo.size() + PACKAGE_WHITELIST.length);
+        long lastPublishTime = SystemClock.uptimeMillis();
+
         for (ResolveInfo info : installedAppsInfo) {
             ApplicationInfo appInfo = info.activityInfo.applicationInfo;
             final PackageItem item = new PackageItem(appInfo.packageName,
-                    appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
-            item.activityTitles.add(info.loadLabel(mPm));
-            mHandler.obtainMessage(0, item).sendToTarget();
+                    mAppInfoCache.getLabel(appInfo, 0), mAppInfoCache.getIcon(appInfo, 0));
+            item.activityTitles.add(mAppInfoCache.getLabel(info));
+            addPackage(packages, item);
+
+            final long now = SystemClock.uptimeMillis();
+            if (now - lastPublishTime >= PUBLISH_INTERVAL) {
+                publish(packages);
+                lastPublishTime = now;
+            }
         }
 
         for (String packageName : PACKAGE_WHITELIST) {
             try {
                 ApplicationInfo appInfo = mPm.getApplicationInfo(packageName, 0);
                 final PackageItem item = new PackageItem(appInfo.packageName,
-                        appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
-                mHandler.obtainMessage(0, item).sendToTarget();
+                        mAppInfoCache.getLabel(appInfo, 0), mAppInfoCache.getIcon(appInfo, 0));
+                addPackage(packages, item);
             } catch (PackageManager.NameNotFoundException ignored) {
                 // package not present, so nothing to add -> ignore it
             }
         }
+
+        publish(packages);
+    }
+
+    private static void addPackage(List<PackageItem> packages, PackageItem item) {
+        int index = Collections.binarySearch(packages, item);
+        if (index < 0) {
+            packages.add(-index - 1, item);
+        } else {
+            // The existing item may have been published already, don't modify it
+            final PackageItem merged = new PackageItem(packages.get(index));
+            merged.activityTitles.addAll(item.activityTitles);
+            packages.set(index, merged);
+        }
+    }
+
+    private void publish(List<PackageItem> packages) {
+        mHandler.obtainMessage(0, new ArrayList<PackageItem>(packages)).sendToTarget();
     }
 
     private static class ViewHolder {